@@ -0,0 +1,210 @@
+import java.net.InetAddress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Per-caller, per-operation rate limiting in front of Library's public operations.
+//
+// A caller is a logged-in user id or, for API requests without a session, the remote address.
+// Each (caller, operation) pair is a token bucket stored as a single "theoretical arrival time"
+// (the GCRA form of a token bucket), so admitting a request is one map lookup and one CAS.
+// Requests over the limit are either rejected or, with the QUEUE policy, delayed until a
+// token frees up as long as the wait stays under maxQueueMillis.
+//
+// Configured with system properties:
+//   -Dlibrary.rateLimit=off                  disable entirely
+//   -Dlibrary.rateLimit.search=20/40         <requests per second>/<burst> per operation
+//   -Dlibrary.rateLimit.login=1/5            login and signup attempts per address
+//   -Dlibrary.rateLimit.policy=REJECT|QUEUE
+//   -Dlibrary.rateLimit.maxQueueMs=200
+public class AdmissionControl {
+    public enum Operation { LIST, SEARCH, RENT, RETURN, ADOPT, DONATE, LOGIN }
+
+    public enum Policy { REJECT, QUEUE }
+
+    private static final int MAX_BUCKETS = 100_000;
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final Map<Operation, Limit> limits = new EnumMap<>(Operation.class);
+    private final Map<Operation, Metrics> metrics = new EnumMap<>(Operation.class);
+    // One arrival time per operation for each caller
+    private final ConcurrentHashMap<Object, AtomicLongArray> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime());
+    private final Policy policy;
+    private final long maxQueueNanos;
+    private final boolean enabled;
+
+    private static class Limit {
+        final long intervalNanos;   // time to earn one token
+        final long burstNanos;      // how far ahead of now the bucket may run
+
+        Limit(double perSecond, int burst) {
+            this.intervalNanos = (long) (1_000_000_000L / perSecond);
+            this.burstNanos = intervalNanos * burst;
+        }
+    }
+
+    private static class Metrics {
+        final LongAdder admitted = new LongAdder();
+        final LongAdder delayed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder delayNanos = new LongAdder();
+    }
+
+    public AdmissionControl(Policy policy, long maxQueueMillis, boolean enabled) {
+        this.policy = policy;
+        this.maxQueueNanos = maxQueueMillis * 1_000_000L;
+        this.enabled = enabled;
+        for (Operation operation : Operation.values()) {
+            metrics.put(operation, new Metrics());
+        }
+        setLimit(Operation.LIST, 5, 10);
+        setLimit(Operation.SEARCH, 20, 40);
+        setLimit(Operation.RENT, 5, 10);
+        setLimit(Operation.RETURN, 5, 10);
+        setLimit(Operation.ADOPT, 5, 10);
+        setLimit(Operation.DONATE, 2, 5);
+        // Strict, to slow down password guessing and account spam
+        setLimit(Operation.LOGIN, 1, 5);
+    }
+
+    public static AdmissionControl fromSystemProperties() {
+        boolean enabled = !"off".equalsIgnoreCase(System.getProperty("library.rateLimit", "on"));
+        Policy policy = Policy.valueOf(System.getProperty("library.rateLimit.policy", "REJECT").toUpperCase());
+        AdmissionControl control = new AdmissionControl(policy, Long.getLong("library.rateLimit.maxQueueMs", 200L), enabled);
+        for (Operation operation : Operation.values()) {
+            String value = System.getProperty("library.rateLimit." + operation.name().toLowerCase());
+            if (value != null) {
+                String[] parts = value.split("/");
+                double perSecond = Double.parseDouble(parts[0]);
+                int burst = parts.length > 1 ? Integer.parseInt(parts[1]) : (int) Math.max(1, perSecond);
+                control.setLimit(operation, perSecond, burst);
+            }
+        }
+        return control;
+    }
+
+    // For trusted callers such as batch jobs
+    public static AdmissionControl unlimited() {
+        return new AdmissionControl(Policy.REJECT, 0, false);
+    }
+
+    public void setLimit(Operation operation, double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        limits.put(operation, new Limit(perSecond, burst));
+    }
+
+    public void acquire(int userId, Operation operation) throws RateLimitExceededException {
+        acquire((Integer) userId, operation);
+    }
+
+    // For API callers without a session
+    public void acquire(InetAddress address, Operation operation) throws RateLimitExceededException {
+        acquire((Object) address, operation);
+    }
+
+    private void acquire(Object caller, Operation operation) throws RateLimitExceededException {
+        if (!enabled) {
+            return;
+        }
+        Limit limit = limits.get(operation);
+        Metrics counters = metrics.get(operation);
+        AtomicLongArray bucket = bucketsFor(caller);
+        int slot = operation.ordinal();
+
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = bucket.get(slot);
+            long next = Math.max(arrival, now) + limit.intervalNanos;
+            long wait = next - now - limit.burstNanos;
+
+            if (wait <= 0) {
+                if (bucket.compareAndSet(slot, arrival, next)) {
+                    counters.admitted.increment();
+                    return;
+                }
+            } else if (policy == Policy.QUEUE && wait <= maxQueueNanos) {
+                // Reserve the slot first, then wait for it
+                if (bucket.compareAndSet(slot, arrival, next)) {
+                    counters.delayed.increment();
+                    counters.delayNanos.add(wait);
+                    LockSupport.parkNanos(wait);
+                    counters.admitted.increment();
+                    return;
+                }
+            } else {
+                counters.rejected.increment();
+                throw new RateLimitExceededException("Too many " + operation.name().toLowerCase()
+                    + " requests. Please wait a moment and try again.");
+            }
+        }
+    }
+
+    private AtomicLongArray bucketsFor(Object caller) {
+        AtomicLongArray bucket = buckets.get(caller);
+        if (bucket != null) {
+            return bucket;
+        }
+        sweepIfFull();
+        return buckets.computeIfAbsent(caller, k -> {
+            AtomicLongArray created = new AtomicLongArray(Operation.values().length);
+            for (int i = 0; i < created.length(); i++) {
+                created.set(i, Long.MIN_VALUE / 2);
+            }
+            return created;
+        });
+    }
+
+    // Over MAX_BUCKETS callers, drops the ones whose buckets have all refilled. At most one sweep per interval,
+    // so a flood of new callers pays for one scan a second rather than one per caller.
+    private void sweepIfFull() {
+        if (buckets.size() <= MAX_BUCKETS) {
+            return;
+        }
+        long now = System.nanoTime();
+        long due = nextSweepNanos.get();
+        if (now - due < 0 || !nextSweepNanos.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+        // A bucket whose arrival time has passed is full again, so dropping it changes nothing
+        buckets.values().removeIf(bucket -> {
+            for (int i = 0; i < bucket.length(); i++) {
+                if (bucket.get(i) - now > 0) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    public long getAdmitted(Operation operation) {
+        return metrics.get(operation).admitted.sum();
+    }
+
+    public long getRejected(Operation operation) {
+        return metrics.get(operation).rejected.sum();
+    }
+
+    // Served under "admission" on the API's /metrics
+    public String metricsJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Operation operation : Operation.values()) {
+            Metrics counters = metrics.get(operation);
+            long delayed = counters.delayed.sum();
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append('"').append(operation.name().toLowerCase()).append("\":{\"admitted\":").append(counters.admitted.sum())
+                .append(",\"delayed\":").append(delayed)
+                .append(",\"avgDelayMs\":").append(delayed == 0 ? 0.0 : counters.delayNanos.sum() / 1e6 / delayed)
+                .append(",\"rejected\":").append(counters.rejected.sum()).append('}');
+        }
+        return json.append('}').toString();
+    }
+}
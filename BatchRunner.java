@@ -0,0 +1,191 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Non-interactive mode for nightly jobs and load tests.
+// Reads one command per line, fields separated by '|':
+//   rent|<username>|<isbn>|<days>
+//   return|<username>|<isbn>
+//   adopt|<username>|<isbn>
+//   donate|<username>|<isbn>|<title>|<author>|<price>
+//   lend|<username>|<isbn>|<title>|<author>|<price>|<months>
+//   search|<title>
+// Blank lines and lines starting with '#' are skipped.
+//
+// Commands run in batches. Saves are deferred inside a batch and the batch's dirty shards
+// are written while the next batch executes, so each batch costs one persistence flush.
+public class BatchRunner {
+    // Searches are not tied to an account; batch jobs run without rate limits anyway
+    private static final int BATCH_USER_ID = 0;
+
+    private final Library library;
+    private final int batchSize;
+    private final boolean quiet;
+    private final PrintStream report;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private int commandCount;
+    private int failedCount;
+    private int failedSaves;
+    private long flushWaitNanos;
+
+    public BatchRunner(Library library, int batchSize, boolean quiet) {
+        this.library = library;
+        this.batchSize = batchSize;
+        this.quiet = quiet;
+        this.report = System.out;
+    }
+
+    // source is a file name, or "-" for stdin
+    public void run(String source) throws IOException {
+        Reader input = source.equals("-") ? new InputStreamReader(System.in) : new FileReader(source);
+        PrintStream console = System.out;
+        if (quiet) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        long start = System.nanoTime();
+        int batches = 0;
+        library.setSavesDeferred(true);
+        try (BufferedReader reader = new BufferedReader(input)) {
+            CompletableFuture<Void> previousFlush = CompletableFuture.completedFuture(null);
+            List<String> batch = new ArrayList<>(batchSize);
+            String line;
+            boolean more = true;
+            while (more) {
+                line = reader.readLine();
+                if (line != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        batch.add(line);
+                    }
+                } else {
+                    more = false;
+                }
+                if (batch.size() == batchSize || (!more && !batch.isEmpty())) {
+                    LibraryClock.tick();
+                    library.processExpiredLoans();
+                    library.evictIdleSessions();
+                    for (String command : batch) {
+                        execute(command);
+                    }
+                    batch.clear();
+                    batches++;
+
+                    // Keep at most one flush in flight behind the executing batch
+                    awaitSave(previousFlush);
+                    previousFlush = library.save();
+                }
+            }
+            awaitSave(previousFlush);
+            // A failed save leaves its shards dirty; give them one more try before the report
+            awaitSave(library.save());
+            long waitStart = System.nanoTime();
+            library.flush();
+            flushWaitNanos += System.nanoTime() - waitStart;
+        } finally {
+            library.setSavesDeferred(false);
+            System.setOut(console);
+        }
+
+        printReport(System.nanoTime() - start, batches);
+    }
+
+    private void execute(String line) {
+        long start = System.nanoTime();
+        try {
+            String[] fields = line.split("\\|", -1);
+            // Refusals come back as false or as an exception; both count as failed
+            boolean succeeded = switch (fields[0].trim().toLowerCase()) {
+                case "rent" -> {
+                    expectFields(fields, 4);
+                    library.rentBook(fields[2].trim(), user(fields[1]).getId(), Integer.parseInt(fields[3].trim()));
+                    yield true;
+                }
+                case "return" -> {
+                    expectFields(fields, 3);
+                    library.returnBook(fields[2].trim(), user(fields[1]).getId());
+                    yield true;
+                }
+                case "adopt" -> {
+                    expectFields(fields, 3);
+                    library.adoptBook(fields[2].trim(), user(fields[1]).getId());
+                    yield true;
+                }
+                case "donate" -> {
+                    expectFields(fields, 6);
+                    yield library.acceptPermanentDonation(user(fields[1]), fields[2].trim(), fields[3].trim(),
+                        fields[4].trim(), Double.parseDouble(fields[5].trim()));
+                }
+                case "lend" -> {
+                    expectFields(fields, 7);
+                    yield library.acceptTemporaryLoan(user(fields[1]), fields[2].trim(), fields[3].trim(),
+                        fields[4].trim(), Double.parseDouble(fields[5].trim()), Integer.parseInt(fields[6].trim()));
+                }
+                case "search" -> {
+                    expectFields(fields, 2);
+                    library.searchBookByTitle(fields[1].trim(), BATCH_USER_ID);
+                    yield true;
+                }
+                default -> throw new IllegalArgumentException("Unknown command: " + fields[0]);
+            };
+            if (!succeeded) {
+                failedCount++;
+            }
+        } catch (Exception e) {
+            failedCount++;
+            if (!quiet) {
+                System.out.println("Error in '" + line + "': " + e.getMessage());
+            }
+        }
+        commandCount++;
+        latencies.record(System.nanoTime() - start);
+    }
+
+    // The executor has already reported the error; the next save retries the shards
+    private void awaitSave(CompletableFuture<Void> save) {
+        long waitStart = System.nanoTime();
+        try {
+            save.join();
+        } catch (CompletionException e) {
+            failedSaves++;
+        }
+        flushWaitNanos += System.nanoTime() - waitStart;
+    }
+
+    private static void expectFields(String[] fields, int count) {
+        if (fields.length != count) {
+            throw new IllegalArgumentException("Expected " + (count - 1) + " argument(s), got " + (fields.length - 1));
+        }
+    }
+
+    // The user's session, so borrowed books carry across commands
+    private User user(String username) throws UserNotFoundException {
+        User user = DatabaseManager.findUser(username.trim());
+        if (user == null) {
+            throw new UserNotFoundException("User " + username.trim() + " not found");
+        }
+        return library.registerUser(user);
+    }
+
+    private void printReport(long elapsedNanos, int batches) {
+        double seconds = elapsedNanos / 1e9;
+
+        report.println("\n===== Batch Report =====");
+        report.printf("Commands: %d (%d failed) in %d batch(es)%n", commandCount, failedCount, batches);
+        report.printf("Elapsed: %.3f s, throughput: %.0f commands/s%n", seconds, commandCount / Math.max(seconds, 1e-9));
+        report.printf("Latency: p50 %s, p90 %s, p99 %s, max %s%n",
+            formatMillis(latencies.percentile(0.50)), formatMillis(latencies.percentile(0.90)),
+            formatMillis(latencies.percentile(0.99)), formatMillis(latencies.getMax()));
+        report.printf("Waiting on persistence: %.3f s, failed saves: %d%n", flushWaitNanos / 1e9, failedSaves);
+        report.println(library.getLedger().report());
+        report.println(library.getEvents().metricsReport());
+        report.println("========================");
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+}
@@ -1,14 +1,36 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 
 public class Book implements Serializable {
-    private final String isbn;
-    private final String title;
-    private final String author;
+    // Pinned to the original computed value so existing catalog files keep loading
+    private static final long serialVersionUID = 4857126489255338457L;
+
+    // Title and author are handles into the shared StringPool. The serialized form still
+    // carries them as strings, field for field as before, so old and new files are interchangeable.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("isbn", String.class),
+        new ObjectStreamField("title", String.class),
+        new ObjectStreamField("author", String.class),
+        new ObjectStreamField("available", boolean.class),
+        new ObjectStreamField("rentalPricePerDay", double.class),
+        new ObjectStreamField("donorUserId", Integer.class),
+        new ObjectStreamField("donationType", String.class),
+        new ObjectStreamField("lendUntilDate", LocalDate.class),
+        new ObjectStreamField("borrowedAt", LocalDateTime.class),
+        new ObjectStreamField("rentalDueDate", LocalDate.class)
+    };
+
+    private String isbn;
+    private int title;
+    private int author;
     private boolean available;
-    private final double rentalPricePerDay;
+    private double rentalPricePerDay;
     
     private Integer donorUserId;
     private String donationType;
@@ -18,8 +40,8 @@ public class Book implements Serializable {
 
     public Book(String isbn, String title, String author, double rentalPricePerDay) {
         this.isbn = isbn;
-        this.title = title;
-        this.author = author;
+        this.title = StringPool.getInstance().intern(title);
+        this.author = StringPool.getInstance().intern(author);
         this.available = true;
         this.rentalPricePerDay = rentalPricePerDay;
         this.donorUserId = null;
@@ -27,9 +49,29 @@ public class Book implements Serializable {
         this.lendUntilDate = null;
     }
 
+    // Startup image path: title and author are already in the pool
+    static Book fromPool(String isbn, int title, int author, double rentalPricePerDay) {
+        return new Book(isbn, title, author, rentalPricePerDay);
+    }
+
+    private Book(String isbn, int title, int author, double rentalPricePerDay) {
+        this.isbn = isbn;
+        this.title = title;
+        this.author = author;
+        this.available = true;
+        this.rentalPricePerDay = rentalPricePerDay;
+    }
+
     public void borrow() {
         this.available = false;
-        this.borrowedAt = LocalDateTime.now();
+        this.borrowedAt = LibraryClock.now();
+    }
+
+    // Restores a loan made elsewhere (replicas, startup images) without resetting its dates
+    void restoreLoan(LocalDateTime borrowedAt, LocalDate rentalDueDate) {
+        this.available = false;
+        this.borrowedAt = borrowedAt;
+        this.rentalDueDate = rentalDueDate;
     }
 
     public void returnBook() {
@@ -43,10 +85,18 @@ public class Book implements Serializable {
     }
 
     public String getTitle() {
-        return title;
+        return StringPool.getInstance().get(title);
     }
 
     public String getAuthor() {
+        return StringPool.getInstance().get(author);
+    }
+
+    int getTitleHandle() {
+        return title;
+    }
+
+    int getAuthorHandle() {
         return author;
     }
 
@@ -82,7 +132,7 @@ public class Book implements Serializable {
     
     public boolean isExpired() {
         if (lendUntilDate == null) return false;
-        return LocalDate.now().isAfter(lendUntilDate);
+        return LibraryClock.today().isAfter(lendUntilDate);
     }
     
     public boolean isFree() {
@@ -91,14 +141,18 @@ public class Book implements Serializable {
     
     public String getBorrowDuration() {
         if (borrowedAt == null) return "N/A";
-        long days = ChronoUnit.DAYS.between(borrowedAt, LocalDateTime.now());
+        long days = ChronoUnit.DAYS.between(borrowedAt, LibraryClock.now());
         if (days == 0) return "Today";
         if (days == 1) return "1 day";
         return days + " days";
     }
     
     public void setRentalDueDate(int days) {
-        this.rentalDueDate = LocalDate.now().plusDays(days);
+        this.rentalDueDate = LibraryClock.today().plusDays(days);
+    }
+    
+    public LocalDateTime getBorrowedAt() {
+        return borrowedAt;
     }
     
     public LocalDate getDueDate() {
@@ -107,7 +161,7 @@ public class Book implements Serializable {
     
     public int getDaysLate() {
         if (rentalDueDate == null) return 0;
-        long days = ChronoUnit.DAYS.between(rentalDueDate, LocalDate.now());
+        long days = ChronoUnit.DAYS.between(rentalDueDate, LibraryClock.today());
         return days > 0 ? (int) days : 0;
     }
     
@@ -130,6 +184,35 @@ public class Book implements Serializable {
         String statusInfo = available ? "Available" : "Borrowed (" + getBorrowDuration() + ")";
         
         return String.format("[ISBN: %s] %s by %s - %s - %s", 
-            normalizedIsbn, title, author, priceInfo, statusInfo);
+            normalizedIsbn, getTitle(), getAuthor(), priceInfo, statusInfo);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("isbn", isbn);
+        fields.put("title", getTitle());
+        fields.put("author", getAuthor());
+        fields.put("available", available);
+        fields.put("rentalPricePerDay", rentalPricePerDay);
+        fields.put("donorUserId", donorUserId);
+        fields.put("donationType", donationType);
+        fields.put("lendUntilDate", lendUntilDate);
+        fields.put("borrowedAt", borrowedAt);
+        fields.put("rentalDueDate", rentalDueDate);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        isbn = (String) fields.get("isbn", null);
+        title = StringPool.getInstance().intern((String) fields.get("title", ""));
+        author = StringPool.getInstance().intern((String) fields.get("author", ""));
+        available = fields.get("available", true);
+        rentalPricePerDay = fields.get("rentalPricePerDay", 0.0);
+        donorUserId = (Integer) fields.get("donorUserId", null);
+        donationType = (String) fields.get("donationType", null);
+        lendUntilDate = (LocalDate) fields.get("lendUntilDate", null);
+        borrowedAt = (LocalDateTime) fields.get("borrowedAt", null);
+        rentalDueDate = (LocalDate) fields.get("rentalDueDate", null);
     }
 }
@@ -0,0 +1,77 @@
+// Filter for Library.findBooks. Unset criteria match every book.
+//   new BookQuery().author("J.K. Rowling").priceBetween(1, 5).availableOnly()
+public class BookQuery {
+    private String author;
+    private Double minPrice;
+    private Double maxPrice;
+    private Boolean free;
+    private Boolean available;
+
+    public BookQuery author(String author) {
+        this.author = author;
+        return this;
+    }
+
+    public BookQuery priceBetween(double minPrice, double maxPrice) {
+        if (minPrice > maxPrice) {
+            throw new IllegalArgumentException("Minimum price cannot be above maximum price");
+        }
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        return this;
+    }
+
+    public BookQuery freeOnly() {
+        this.free = true;
+        return this;
+    }
+
+    public BookQuery paidOnly() {
+        this.free = false;
+        return this;
+    }
+
+    public BookQuery availableOnly() {
+        this.available = true;
+        return this;
+    }
+
+    public BookQuery borrowedOnly() {
+        this.available = false;
+        return this;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public Double getMinPrice() {
+        return minPrice;
+    }
+
+    public Double getMaxPrice() {
+        return maxPrice;
+    }
+
+    public Boolean getFree() {
+        return free;
+    }
+
+    public Boolean getAvailable() {
+        return available;
+    }
+
+    // Same semantics as the index lookup, for when the indexes are not built yet
+    public boolean matches(Book book) {
+        if (author != null && !book.getAuthor().trim().toLowerCase().equals(author.trim().toLowerCase())) {
+            return false;
+        }
+        if (minPrice != null && (book.getRentalPricePerDay() < minPrice || book.getRentalPricePerDay() > maxPrice)) {
+            return false;
+        }
+        if (free != null && book.isFree() != free) {
+            return false;
+        }
+        return available == null || book.isAvailable() == available;
+    }
+}
@@ -0,0 +1,286 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Secondary indexes for filtering the catalog without scanning it.
+// Every book gets a small integer id. Authors, prices and loan end dates map to sorted id
+// lists; each availability and free/paid flag value has its own bitset. A query walks the
+// smallest id list it names and checks the other conditions per book, or with only flags walks
+// their bitset, so its cost follows the result size rather than the catalog size.
+public class CatalogIndexes {
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final List<Book> docs = new ArrayList<>();
+    private final BitSet live = new BitSet();
+    private final BitSet available = new BitSet();
+    private final BitSet borrowed = new BitSet();
+    private final BitSet free = new BitSet();
+    private final BitSet paid = new BitSet();
+    private final Map<Integer, IdList> byAuthor = new HashMap<>();          // author handle -> book ids
+    private final Map<Integer, IdList> authorsByFoldedHash = new HashMap<>(); // case-folded name hash -> author handles
+    private final TreeMap<Double, IdList> byPrice = new TreeMap<>();
+    private final TreeMap<LocalDate, IdList> byLendUntil = new TreeMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int firstFreeId;   // no id below this is free
+
+    // Sorted set of ids, sized by how many it holds rather than by the largest id
+    private static class IdList {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) {
+                System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+                size--;
+            }
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    public void add(Book book) {
+        String key = ShardedCatalog.normalizeIsbn(book.getIsbn());
+        lock.writeLock().lock();
+        try {
+            removeLocked(key);
+            // Reuse freed ids so the bitsets stay as small as the catalog
+            int id = live.nextClearBit(firstFreeId);
+            firstFreeId = id + 1;
+            if (id == docs.size()) {
+                docs.add(book);
+            } else {
+                docs.set(id, book);
+            }
+            docIds.put(key, id);
+            live.set(id);
+            available.set(id, book.isAvailable());
+            borrowed.set(id, !book.isAvailable());
+            free.set(id, book.isFree());
+            paid.set(id, !book.isFree());
+            byAuthor.computeIfAbsent(book.getAuthorHandle(), handle -> {
+                authorsByFoldedHash.computeIfAbsent(authorKey(book.getAuthor()).hashCode(), k -> new IdList()).add(handle);
+                return new IdList();
+            }).add(id);
+            byPrice.computeIfAbsent(book.getRentalPricePerDay(), k -> new IdList()).add(id);
+            if (book.isTemporaryLoan() && book.getLendUntilDate() != null) {
+                byLendUntil.computeIfAbsent(book.getLendUntilDate(), k -> new IdList()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Book book) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(ShardedCatalog.normalizeIsbn(book.getIsbn()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(String key) {
+        Integer id = docIds.remove(key);
+        if (id == null) {
+            return;
+        }
+        Book book = docs.get(id);
+        docs.set(id, null);
+        live.clear(id);
+        firstFreeId = Math.min(firstFreeId, id);
+        available.clear(id);
+        borrowed.clear(id);
+        free.clear(id);
+        paid.clear(id);
+        int handle = book.getAuthorHandle();
+        removeFrom(byAuthor, handle, id);
+        if (!byAuthor.containsKey(handle)) {
+            removeFrom(authorsByFoldedHash, authorKey(book.getAuthor()).hashCode(), handle);
+        }
+        removeFrom(byPrice, book.getRentalPricePerDay(), id);
+        if (book.getLendUntilDate() != null) {
+            removeFrom(byLendUntil, book.getLendUntilDate(), id);
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, IdList> index, K key, int id) {
+        IdList ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    // Call after a book is rented or returned
+    public void updateAvailability(Book book) {
+        lock.writeLock().lock();
+        try {
+            Integer id = docIds.get(ShardedCatalog.normalizeIsbn(book.getIsbn()));
+            if (id != null) {
+                available.set(id, book.isAvailable());
+                borrowed.set(id, !book.isAvailable());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Book> find(BookQuery query) {
+        lock.readLock().lock();
+        try {
+            List<IdList> authorIds = null;
+            int authorCount = 0;
+            if (query.getAuthor() != null) {
+                authorIds = authorPostings(authorKey(query.getAuthor()));
+                if (authorIds.isEmpty()) {
+                    return new ArrayList<>();
+                }
+                for (IdList ids : authorIds) {
+                    authorCount += ids.size;
+                }
+            }
+            Collection<IdList> priceIds = null;
+            int priceCount = 0;
+            if (query.getMinPrice() != null) {
+                priceIds = byPrice.subMap(query.getMinPrice(), true, query.getMaxPrice(), true).values();
+                for (IdList ids : priceIds) {
+                    priceCount += ids.size;
+                }
+            }
+
+            List<Book> found = new ArrayList<>();
+            if (authorIds != null && (priceIds == null || authorCount <= priceCount)) {
+                for (int id : sortedIds(authorIds, authorCount)) {
+                    collect(id, query, null, found);
+                }
+            } else if (priceIds != null) {
+                for (int id : sortedIds(priceIds, priceCount)) {
+                    collect(id, query, authorIds, found);
+                }
+            } else {
+                // Only the flags were given; every id in their bitset is a match
+                BitSet matches = flagMatches(query);
+                for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+                    found.add(docs.get(id));
+                }
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The ids passing the query's free/paid and available/borrowed flags
+    private BitSet flagMatches(BookQuery query) {
+        BitSet byPrice = query.getFree() == null ? null : query.getFree() ? free : paid;
+        BitSet byAvailability = query.getAvailable() == null ? null : query.getAvailable() ? available : borrowed;
+        if (byPrice == null) {
+            return byAvailability == null ? live : byAvailability;
+        }
+        if (byAvailability == null) {
+            return byPrice;
+        }
+        BitSet both = (BitSet) byPrice.clone();
+        both.and(byAvailability);
+        return both;
+    }
+
+    // The id lists of every author whose name matches this one ignoring case and surrounding spaces
+    private List<IdList> authorPostings(String key) {
+        List<IdList> postings = new ArrayList<>();
+        IdList handles = authorsByFoldedHash.get(key.hashCode());
+        if (handles != null) {
+            StringPool pool = StringPool.getInstance();
+            for (int i = 0; i < handles.size; i++) {
+                if (authorKey(pool.get(handles.ids[i])).equals(key)) {
+                    postings.add(byAuthor.get(handles.ids[i]));
+                }
+            }
+        }
+        return postings;
+    }
+
+    // All ids of these lists in ascending order, so results come back in id order
+    private static int[] sortedIds(Collection<IdList> lists, int count) {
+        int[] ids = new int[count];
+        int n = 0;
+        for (IdList list : lists) {
+            System.arraycopy(list.ids, 0, ids, n, list.size);
+            n += list.size;
+        }
+        if (lists.size() > 1) {
+            Arrays.sort(ids);
+        }
+        return ids;
+    }
+
+    // Adds the book with this id if it passes the price, author and flag conditions
+    private void collect(int id, BookQuery query, List<IdList> authorIds, List<Book> found) {
+        Book book = docs.get(id);
+        if (query.getMinPrice() != null) {
+            double price = book.getRentalPricePerDay();
+            if (price < query.getMinPrice() || price > query.getMaxPrice()) {
+                return;
+            }
+        }
+        if (authorIds != null && authorIds.stream().noneMatch(ids -> ids.contains(id))) {
+            return;
+        }
+        if (query.getFree() != null && free.get(id) != query.getFree()) {
+            return;
+        }
+        if (query.getAvailable() != null && available.get(id) != query.getAvailable()) {
+            return;
+        }
+        found.add(book);
+    }
+
+    // Temporary loans whose lend-until date is before today, without scanning the catalog
+    public List<Book> expiredLoans(LocalDate today) {
+        lock.readLock().lock();
+        try {
+            List<Book> expired = new ArrayList<>();
+            for (IdList ids : byLendUntil.headMap(today, false).values()) {
+                for (int i = 0; i < ids.size; i++) {
+                    expired.add(docs.get(ids.ids[i]));
+                }
+            }
+            return expired;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String authorKey(String author) {
+        return author.trim().toLowerCase();
+    }
+}
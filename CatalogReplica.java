@@ -0,0 +1,167 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Read-only copy of the catalog kept up to date by tailing the primary's change stream.
+// Run one per branch: java CatalogReplica [catalog-changes.log]
+public class CatalogReplica {
+    private static final long POLL_MILLIS = 50;
+
+    private final File logFile;
+    private final Map<String, Book> books = new ConcurrentHashMap<>();
+    private long epoch;
+    private long position;
+    private volatile long lastSequence;
+    private volatile long lastLagMillis;
+    private volatile long maxLagMillis;
+    private volatile long applied;
+
+    public CatalogReplica(String logFileName) {
+        this.logFile = new File(logFileName);
+    }
+
+    // Applies every complete record appended since the last poll; returns how many were applied
+    public synchronized int poll() throws IOException {
+        if (!logFile.exists()) {
+            return 0;
+        }
+        int count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            if (raf.length() < 8) {
+                return 0;
+            }
+            long fileEpoch = raf.readLong();
+            if (fileEpoch != epoch) {
+                // Primary restarted or compacted the log; it starts with a full snapshot
+                epoch = fileEpoch;
+                position = 8;
+                books.clear();
+            }
+
+            long length = raf.length();
+            raf.seek(position);
+            while (length - position >= 4) {
+                int recordLength = raf.readInt();
+                if (length - position - 4 < recordLength) {
+                    break; // record still being written
+                }
+                byte[] body = new byte[recordLength];
+                raf.readFully(body);
+                apply(ChangeStream.decode(body));
+                position += 4 + recordLength;
+                count++;
+            }
+        }
+        applied += count;
+        return count;
+    }
+
+    private void apply(ChangeStream.Change change) {
+        String key = ShardedCatalog.normalizeIsbn(change.isbn);
+        switch (change.type) {
+            case ADD -> books.put(key, change.book);
+            case RENT -> {
+                Book book = books.get(key);
+                if (book != null) {
+                    book.restoreLoan(change.borrowedAt, change.dueDate);
+                }
+            }
+            case RETURN -> {
+                Book book = books.get(key);
+                if (book != null) {
+                    book.returnBook();
+                }
+            }
+            case ADOPT, EXPIRE -> books.remove(key);
+        }
+        lastSequence = change.sequence;
+        lastLagMillis = System.currentTimeMillis() - change.timestampMillis;
+        maxLagMillis = Math.max(maxLagMillis, lastLagMillis);
+    }
+
+    public List<Book> searchByTitle(String title) {
+        String query = title.toLowerCase();
+        List<Book> found = new ArrayList<>();
+        for (Book book : books.values()) {
+            if (book.getTitle().toLowerCase().contains(query)) {
+                found.add(book);
+            }
+        }
+        found.sort(ShardedCatalog.BY_ISBN);
+        return found;
+    }
+
+    public int size() {
+        return books.size();
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public String stats() {
+        long behindBytes = Math.max(0, logFile.length() - position);
+        return String.format("books=%d seq=%d applied=%d lag=%dms maxLag=%dms behind=%d bytes",
+            books.size(), lastSequence, applied, lastLagMillis, maxLagMillis, behindBytes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String logFileName = args.length > 0 ? args[0] : "catalog-changes.log";
+        CatalogReplica replica = new CatalogReplica(logFileName);
+
+        long start = System.nanoTime();
+        int caughtUp = replica.poll();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Caught up on %d changes in %.3f s (%.0f changes/s)%n",
+            caughtUp, seconds, caughtUp / Math.max(seconds, 1e-9));
+        System.out.println(replica.stats());
+
+        Thread tailer = new Thread(() -> {
+            long lastReport = System.currentTimeMillis();
+            while (true) {
+                try {
+                    if (replica.poll() == 0) {
+                        Thread.sleep(POLL_MILLIS);
+                    }
+                    if (System.currentTimeMillis() - lastReport >= 10_000) {
+                        System.out.println("[replica] " + replica.stats());
+                        lastReport = System.currentTimeMillis();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error reading change stream: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "replica-tailer");
+        tailer.setDaemon(true);
+        tailer.start();
+
+        System.out.println("Type a title to search, 'stats' for replication status, or 'exit'.");
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equals("exit")) {
+                break;
+            }
+            if (line.equals("stats")) {
+                System.out.println(replica.stats());
+                continue;
+            }
+            List<Book> found = replica.searchByTitle(line);
+            if (found.isEmpty()) {
+                System.out.println("No books found with title containing: " + line);
+            } else {
+                for (Book book : found) {
+                    System.out.println(book);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.*;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.function.Supplier;
+
+// Append-only log of catalog mutations that replicas tail to keep their own copy of the catalog.
+//
+// The file starts with an 8-byte epoch. A new epoch (written to a temp file and renamed into
+// place) begins with an ADD for every book, so a replica that sees the epoch change just
+// clears its catalog and reads from the start. Each record is a 4-byte length followed by
+// sequence, timestamp, type and ISBN, plus the fields that type needs. Everything but an ADD
+// also records the user and the amount charged. RentalHistory writes the same records.
+//
+// Records are written from library events on the event dispatcher thread, not on the
+// request path. Compaction runs on a thread of its own: the snapshot takes the catalog's shard
+// locks, which a publisher waiting on the dispatcher may hold. The new epoch gets a snapshot
+// taken after some record R (its ADDs carry R's sequence) followed by every record written
+// after R, so no change is dropped and replaying one the snapshot already has is harmless.
+public class ChangeStream implements Closeable, LibraryEvents.Subscriber {
+    public enum Type { ADD, RENT, RETURN, ADOPT, EXPIRE }
+
+    public static class Change {
+        long sequence;
+        long timestampMillis;
+        Type type;
+        String isbn;
+        Book book;              // ADD
+        int userId;             // all but ADD
+        double amount;          // all but ADD: rental cost or late fee
+        LocalDateTime borrowedAt; // RENT
+        LocalDate dueDate;        // RENT
+    }
+
+    private static final long COMPACT_BYTES = Long.getLong("library.changeLogMaxBytes", 64L * 1024 * 1024);
+
+    private final Path path;
+    private final Supplier<List<Book>> catalogSnapshot;
+    private FileOutputStream out;
+    private long bytesWritten;
+    private long sequence;
+    private long compactAtBytes;
+    private boolean compacting;
+    private boolean closed;
+
+    public ChangeStream(String fileName, Supplier<List<Book>> catalogSnapshot) throws IOException {
+        this.path = Paths.get(fileName);
+        this.catalogSnapshot = catalogSnapshot;
+        startEpoch(catalogSnapshot.get(), 0, new byte[0]);
+        compactAtBytes = Math.max(COMPACT_BYTES, 2 * bytesWritten);
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    // The record type for a library event, or null if it is not a catalog change
+    static Type typeOf(LibraryEvents.Type eventType) {
+        return switch (eventType) {
+            case BOOK_ADDED, BOOK_DONATED -> Type.ADD;
+            case BOOK_RENTED -> Type.RENT;
+            case BOOK_RETURNED -> Type.RETURN;
+            case BOOK_ADOPTED -> Type.ADOPT;
+            case LOAN_EXPIRED -> Type.EXPIRE;
+            case USER_REGISTERED -> null;
+        };
+    }
+
+    @Override
+    public void onEvent(LibraryEvents.Event event) {
+        Type type = typeOf(event.getType());
+        if (type != null) {
+            publish(type, event.getBook(), event.getUserId(), event.getAmount(), event.getBorrowedAt(), event.getDueDate(),
+                event.getTimestampMillis());
+        }
+    }
+
+    // Called after the change has been applied to the primary catalog. A RENT carries the
+    // loan dates as they were then, since the book may have been returned in the meantime.
+    public synchronized void publish(Type type, Book book, int userId, double amount, LocalDateTime borrowedAt,
+                                     LocalDate dueDate, long timestampMillis) {
+        try {
+            byte[] record = encode(++sequence, type, book, userId, amount, borrowedAt, dueDate, timestampMillis);
+            out.write(record);
+            bytesWritten += record.length;
+        } catch (IOException e) {
+            System.out.println("Error writing change stream: " + e.getMessage());
+        }
+        if (bytesWritten > compactAtBytes && !compacting) {
+            compacting = true;
+            Thread compaction = new Thread(this::compact, "change-stream-compaction");
+            compaction.setDaemon(true);
+            compaction.start();
+        }
+    }
+
+    private void compact() {
+        long snapshotSequence;
+        long snapshotOffset;
+        synchronized (this) {
+            snapshotSequence = sequence;
+            snapshotOffset = bytesWritten;
+        }
+        // Everything up to snapshotOffset was applied to the catalog before it was published
+        List<Book> books = catalogSnapshot.get();
+        synchronized (this) {
+            try {
+                if (!closed) {
+                    byte[] tail = new byte[(int) (bytesWritten - snapshotOffset)];
+                    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+                        file.seek(snapshotOffset);
+                        file.readFully(tail);
+                    }
+                    startEpoch(books, snapshotSequence, tail);
+                    // A catalog bigger than the limit would otherwise be compacted again straight away
+                    compactAtBytes = Math.max(COMPACT_BYTES, 2 * bytesWritten);
+                }
+            } catch (IOException e) {
+                System.out.println("Error compacting change stream: " + e.getMessage());
+                // Keep appending to the old epoch and try again once it has grown some more
+                compactAtBytes = bytesWritten + COMPACT_BYTES;
+            } finally {
+                compacting = false;
+            }
+        }
+    }
+
+    // Rewrites the log as a fresh epoch: the snapshot, then the records written since it was taken
+    private void startEpoch(List<Book> books, long snapshotSequence, byte[] tail) throws IOException {
+        Path temp = Paths.get(path + ".tmp");
+        ByteArrayOutputStream epoch = new ByteArrayOutputStream();
+        new DataOutputStream(epoch).writeLong(System.nanoTime() ^ System.currentTimeMillis() << 20);
+        for (Book book : books) {
+            epoch.write(encode(snapshotSequence, Type.ADD, book, Library.NO_USER, 0, book.getBorrowedAt(), book.getDueDate(),
+                System.currentTimeMillis()));
+        }
+        epoch.write(tail);
+        Files.write(temp, epoch.toByteArray());
+        if (out != null) {
+            out.close();
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        out = new FileOutputStream(path.toFile(), true);
+        bytesWritten = epoch.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        out.close();
+    }
+
+    // One record, length prefix included
+    static byte[] encode(long sequence, Type type, Book book, int userId, double amount, LocalDateTime borrowedAt,
+                         LocalDate dueDate, long timestampMillis) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(0); // length, filled in below
+        data.writeLong(sequence);
+        data.writeLong(timestampMillis);
+        data.writeByte(type.ordinal());
+        data.writeUTF(book.getIsbn());
+        if (type == Type.ADD) {
+            data.writeUTF(book.getTitle());
+            data.writeUTF(book.getAuthor());
+            data.writeDouble(book.getRentalPricePerDay());
+            data.writeInt(book.getDonorUserId() == null ? -1 : book.getDonorUserId());
+            data.writeUTF(book.getDonationType() == null ? "" : book.getDonationType());
+            data.writeLong(book.getLendUntilDate() == null ? Long.MIN_VALUE : book.getLendUntilDate().toEpochDay());
+            data.writeBoolean(borrowedAt == null);
+        } else {
+            data.writeInt(userId);
+            data.writeDouble(amount);
+        }
+        if (type == Type.RENT || (type == Type.ADD && borrowedAt != null)) {
+            data.writeLong(borrowedAt == null ? Long.MIN_VALUE
+                : borrowedAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            data.writeLong(dueDate == null ? Long.MIN_VALUE : dueDate.toEpochDay());
+        }
+        data.flush();
+        byte[] record = bytes.toByteArray();
+        int length = record.length - 4;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        return record;
+    }
+
+    // Decodes one record body (without its length prefix)
+    public static Change decode(byte[] body) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+        Change change = new Change();
+        change.sequence = data.readLong();
+        change.timestampMillis = data.readLong();
+        change.type = Type.values()[data.readByte()];
+        change.isbn = data.readUTF();
+        boolean borrowed = change.type == Type.RENT;
+        if (change.type == Type.ADD) {
+            Book book = new Book(change.isbn, data.readUTF(), data.readUTF(), data.readDouble());
+            int donorUserId = data.readInt();
+            String donationType = data.readUTF();
+            long lendUntil = data.readLong();
+            if (donorUserId >= 0) {
+                book.setDonation(donorUserId, donationType.isEmpty() ? null : donationType,
+                    lendUntil == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(lendUntil));
+            }
+            borrowed = !data.readBoolean();
+            change.book = book;
+        } else {
+            change.userId = data.readInt();
+            change.amount = data.readDouble();
+        }
+        if (borrowed) {
+            long borrowedAt = data.readLong();
+            long dueDate = data.readLong();
+            change.borrowedAt = borrowedAt == Long.MIN_VALUE ? null
+                : LocalDateTime.ofInstant(Instant.ofEpochMilli(borrowedAt), ZoneId.systemDefault());
+            change.dueDate = dueDate == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(dueDate);
+            if (change.book != null) {
+                change.book.restoreLoan(change.borrowedAt, change.dueDate);
+            }
+        }
+        return change;
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+// Columnar export of the catalog and the rental history for offline analytics.
+//
+//   java ColumnarExport <output dir> [rental history dir]
+//
+// Writes books.col from the shard files as last saved, read without taking any lock of the
+// running library and without changing the files (ShardedCatalog.loadSnapshot). Then appends
+// a rentals-NNNNN.col segment with the rentals, returns, adoptions and expiries added to the
+// rental history (-Dlibrary.rentalHistory, see RentalHistory) since the previous export.
+// rentals.checkpoint remembers how far that got.
+//
+// File layout, integers big-endian:
+//   magic "LCOL", version, column count, then per column its name (UTF) and type
+//   row groups of up to 1M rows: row count, then per column the encoding, raw length,
+//     compressed length and the Deflate-compressed block
+//   row count 0, then the total row count
+// Block encodings (varints are LEB128; signed values are zigzag-encoded first):
+//   DICTIONARY  value count and the distinct values, then (run length, code) pairs; code 0 = null
+//   PLAIN       one value per row, for strings with too many distinct values to pay off
+//   DELTA       longs as the difference from the previous row
+//   RUN_LENGTH  ints as (run length, value) pairs
+// A string value is varint (UTF-8 length + 1) then the bytes, 0 meaning null; a double is 8
+// bytes. Missing ints and longs (no donor, not borrowed) are their type's MIN_VALUE; dates
+// are epoch days and timestamps epoch milliseconds.
+public class ColumnarExport {
+    public enum ColumnType { STRING, INT, LONG, DOUBLE }
+
+    public enum Encoding { DICTIONARY, PLAIN, DELTA, RUN_LENGTH }
+
+    private static final int MAGIC = 0x4C434F4C; // "LCOL"
+    private static final int VERSION = 1;
+    private static final int ROW_GROUP_SIZE = 1 << 20;
+    private static final int NO_INT = Integer.MIN_VALUE;
+    private static final long NO_LONG = Long.MIN_VALUE;
+    private static final String BOOKS_FILE = "books.col";
+    private static final String CHECKPOINT_FILE = "rentals.checkpoint";
+
+    private interface ValueWriter<K> {
+        void write(K value, DataOutputStream out) throws IOException;
+    }
+
+    // One compressed column block of a row group
+    private static class Block {
+        final Encoding encoding;
+        final int rawLength;
+        final byte[] compressed;
+
+        Block(Encoding encoding, int rawLength, byte[] compressed) {
+            this.encoding = encoding;
+            this.rawLength = rawLength;
+            this.compressed = compressed;
+        }
+    }
+
+    private abstract static class Column<T> {
+        final String name;
+        final ColumnType type;
+
+        Column(String name, ColumnType type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        // Writes the uncompressed block for these rows and returns how it is encoded
+        abstract Encoding encode(List<T> rows, DataOutputStream out) throws IOException;
+
+        Block compress(List<T> rows) {
+            try {
+                ByteArrayOutputStream raw = new ByteArrayOutputStream(rows.size() * 4 + 64);
+                DataOutputStream out = new DataOutputStream(raw);
+                Encoding encoding = encode(rows, out);
+                out.flush();
+                return new Block(encoding, raw.size(), deflate(raw.toByteArray()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static final List<Column<Book>> BOOK_COLUMNS = List.of(
+        stringColumn("isbn", Book::getIsbn),
+        // Titles and authors are already deduplicated in the StringPool; its handles are the dictionary keys
+        dictionaryColumn("title", ColumnType.STRING, Book::getTitleHandle, ColumnarExport::writePooled),
+        dictionaryColumn("author", ColumnType.STRING, Book::getAuthorHandle, ColumnarExport::writePooled),
+        doubleColumn("pricePerDay", Book::getRentalPricePerDay),
+        intColumn("available", book -> book.isAvailable() ? 1 : 0),
+        longColumn("borrowedAt", book -> epochMillis(book.getBorrowedAt())),
+        intColumn("dueDate", book -> epochDay(book.getDueDate())),
+        intColumn("donorUserId", book -> book.getDonorUserId() == null ? NO_INT : book.getDonorUserId()),
+        stringColumn("donationType", Book::getDonationType),
+        intColumn("lendUntil", book -> epochDay(book.getLendUntilDate())));
+
+    private static final List<Column<ChangeStream.Change>> RENTAL_COLUMNS = List.of(
+        longColumn("sequence", change -> change.sequence),
+        longColumn("timestamp", change -> change.timestampMillis),
+        stringColumn("type", change -> change.type.name()),
+        stringColumn("isbn", change -> change.isbn),
+        intColumn("userId", change -> change.userId),
+        doubleColumn("amount", change -> change.amount),
+        longColumn("borrowedAt", change -> epochMillis(change.borrowedAt)),
+        intColumn("dueDate", change -> epochDay(change.dueDate)));
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java ColumnarExport <output dir> [rental history dir]");
+            return;
+        }
+        File dir = new File(args[0]);
+        String historyDir = args.length > 1 ? args[1] : System.getProperty("library.rentalHistory");
+        try {
+            Files.createDirectories(dir.toPath());
+
+            long start = System.nanoTime();
+            ShardedCatalog catalog = new ShardedCatalog(Integer.getInteger("library.shards", 8));
+            catalog.loadSnapshot();
+            List<Book> books = catalog.snapshot();
+            File booksFile = new File(dir, BOOKS_FILE);
+            exportCatalog(books, booksFile);
+            System.out.printf("Exported %d books to %s (%.1f MB) in %.1f s%n", books.size(), booksFile,
+                booksFile.length() / 1e6, (System.nanoTime() - start) / 1e9);
+
+            if (historyDir != null) {
+                start = System.nanoTime();
+                long rentals = exportRentals(historyDir, dir);
+                System.out.printf("Exported %d rental events in %.1f s%n", rentals, (System.nanoTime() - start) / 1e9);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Export failed: " + e.getMessage());
+        }
+    }
+
+    public static long exportCatalog(List<Book> books, File file) throws IOException {
+        try (ColumnarFile<Book> out = new ColumnarFile<>(file.toPath(), BOOK_COLUMNS)) {
+            for (int from = 0; from < books.size(); from += ROW_GROUP_SIZE) {
+                out.writeRowGroup(books.subList(from, Math.min(books.size(), from + ROW_GROUP_SIZE)));
+            }
+            out.finish();
+            return out.rowCount;
+        }
+    }
+
+    // Writes the rental events recorded since the last call to a new segment in dir and
+    // returns how many there were. The rental history is only ever appended to, so events
+    // survive library restarts and change log compactions until they are exported.
+    public static long exportRentals(String historyDir, File dir) throws IOException {
+        File history = new File(historyDir);
+        List<Integer> historySegments = RentalHistory.segments(history);
+        if (historySegments.isEmpty()) {
+            System.out.println("No rental history in " + historyDir + "; start the library with -Dlibrary.rentalHistory.");
+            return 0;
+        }
+        String checkpointFile = new File(dir, CHECKPOINT_FILE).getPath();
+        int historySegment = historySegments.get(0);
+        long position = 0;
+        int segment = 0;
+        byte[] checkpoint = SafeFileStore.read(checkpointFile);
+        if (checkpoint != null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(checkpoint));
+            historySegment = in.readInt();
+            position = in.readLong();
+            segment = in.readInt();
+        }
+        if (!historySegments.contains(historySegment) && historySegments.get(0) > historySegment) {
+            System.out.println("Rental history segments up to " + RentalHistory.segmentFile(history, historySegments.get(0) - 1)
+                + " are gone; exporting from " + RentalHistory.segmentFile(history, historySegments.get(0)) + ".");
+        }
+
+        long exported = 0;
+        Path segmentFile = new File(dir, String.format("rentals-%05d.col", segment + 1)).toPath();
+        ColumnarFile<ChangeStream.Change> out = null;
+        try {
+            List<ChangeStream.Change> rows = new ArrayList<>();
+            for (int number : historySegments) {
+                if (number < historySegment) {
+                    continue;
+                }
+                if (number > historySegment) {
+                    historySegment = number;
+                    position = 0;
+                }
+                try (FileInputStream file = new FileInputStream(RentalHistory.segmentFile(history, number))) {
+                    // Size when opened; the library may still be appending
+                    long length = file.getChannel().size();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+                    in.skipNBytes(position);
+                    while (length - position >= 4) {
+                        int recordLength = in.readInt();
+                        if (length - position - 4 < recordLength) {
+                            break; // record still being written
+                        }
+                        rows.add(ChangeStream.decode(in.readNBytes(recordLength)));
+                        position += 4 + recordLength;
+                        if (rows.size() == ROW_GROUP_SIZE) {
+                            if (out == null) {
+                                out = new ColumnarFile<>(segmentFile, RENTAL_COLUMNS);
+                            }
+                            out.writeRowGroup(rows);
+                            rows.clear();
+                        }
+                    }
+                }
+            }
+            if (!rows.isEmpty()) {
+                if (out == null) {
+                    out = new ColumnarFile<>(segmentFile, RENTAL_COLUMNS);
+                }
+                out.writeRowGroup(rows);
+            }
+            if (out != null) {
+                out.finish();
+                exported = out.rowCount;
+                segment++;
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(saved);
+        data.writeInt(historySegment);
+        data.writeLong(position);
+        data.writeInt(segment);
+        SafeFileStore.write(checkpointFile, saved.toByteArray(), true);
+        return exported;
+    }
+
+    // Written to a temp file that replaces the target only once finish() completes it
+    private static class ColumnarFile<T> implements Closeable {
+        private final Path path;
+        private final Path temp;
+        private final List<Column<T>> columns;
+        private final DataOutputStream out;
+        private long rowCount;
+        private boolean finished;
+
+        ColumnarFile(Path path, List<Column<T>> columns) throws IOException {
+            this.path = path;
+            this.temp = Paths.get(path + ".tmp");
+            this.columns = columns;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(columns.size());
+            for (Column<T> column : columns) {
+                out.writeUTF(column.name);
+                out.writeByte(column.type.ordinal());
+            }
+        }
+
+        // Columns are encoded and compressed in parallel, then written in order
+        void writeRowGroup(List<T> rows) throws IOException {
+            List<Block> blocks = columns.parallelStream().map(column -> column.compress(rows)).collect(Collectors.toList());
+            out.writeInt(rows.size());
+            for (Block block : blocks) {
+                out.writeByte(block.encoding.ordinal());
+                out.writeInt(block.rawLength);
+                out.writeInt(block.compressed.length);
+                out.write(block.compressed);
+            }
+            rowCount += rows.size();
+        }
+
+        void finish() throws IOException {
+            out.writeInt(0);
+            out.writeLong(rowCount);
+            out.close();
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // ---- columns ----
+
+    private static <T> Column<T> stringColumn(String name, Function<T, String> value) {
+        return dictionaryColumn(name, ColumnType.STRING, value, ColumnarExport::writeString);
+    }
+
+    private static <T> Column<T> doubleColumn(String name, Function<T, Double> value) {
+        return dictionaryColumn(name, ColumnType.DOUBLE, value, (number, out) -> out.writeDouble(number));
+    }
+
+    // Falls back to PLAIN once more than half the rows have distinct values
+    private static <T, K> Column<T> dictionaryColumn(String name, ColumnType type, Function<T, K> key, ValueWriter<K> writer) {
+        return new Column<>(name, type) {
+            @Override
+            Encoding encode(List<T> rows, DataOutputStream out) throws IOException {
+                Map<K, Integer> codes = new HashMap<>();
+                List<K> dictionary = new ArrayList<>();
+                int[] rowCodes = new int[rows.size()];
+                int limit = Math.max(16, rows.size() / 2);
+                for (int i = 0; i < rowCodes.length; i++) {
+                    K value = key.apply(rows.get(i));
+                    if (value == null) {
+                        continue; // code 0
+                    }
+                    Integer code = codes.get(value);
+                    if (code == null) {
+                        if (dictionary.size() == limit) {
+                            for (T row : rows) {
+                                writer.write(key.apply(row), out);
+                            }
+                            return Encoding.PLAIN;
+                        }
+                        dictionary.add(value);
+                        code = dictionary.size();
+                        codes.put(value, code);
+                    }
+                    rowCodes[i] = code;
+                }
+                writeVarint(out, dictionary.size());
+                for (K value : dictionary) {
+                    writer.write(value, out);
+                }
+                writeRuns(out, rowCodes.length, i -> rowCodes[i], false);
+                return Encoding.DICTIONARY;
+            }
+        };
+    }
+
+    private static <T> Column<T> intColumn(String name, ToIntFunction<T> value) {
+        return new Column<>(name, ColumnType.INT) {
+            @Override
+            Encoding encode(List<T> rows, DataOutputStream out) throws IOException {
+                writeRuns(out, rows.size(), i -> value.applyAsInt(rows.get(i)), true);
+                return Encoding.RUN_LENGTH;
+            }
+        };
+    }
+
+    private static <T> Column<T> longColumn(String name, ToLongFunction<T> value) {
+        return new Column<>(name, ColumnType.LONG) {
+            @Override
+            Encoding encode(List<T> rows, DataOutputStream out) throws IOException {
+                long previous = 0;
+                for (T row : rows) {
+                    long current = value.applyAsLong(row);
+                    writeVarint(out, zigzag(current - previous));
+                    previous = current;
+                }
+                return Encoding.DELTA;
+            }
+        };
+    }
+
+    // ---- encoding helpers ----
+
+    // (run length, value) pairs over values 0..count-1
+    private static void writeRuns(DataOutputStream out, int count, IntUnaryOperator values, boolean signed)
+            throws IOException {
+        int i = 0;
+        while (i < count) {
+            int value = values.applyAsInt(i);
+            int run = 1;
+            while (i + run < count && values.applyAsInt(i + run) == value) {
+                run++;
+            }
+            writeVarint(out, run);
+            writeVarint(out, signed ? zigzag(value) : value);
+            i += run;
+        }
+    }
+
+    private static void writeString(String value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, utf8.length + 1);
+        out.write(utf8);
+    }
+
+    private static void writePooled(int handle, DataOutputStream out) throws IOException {
+        byte[] utf8 = StringPool.getInstance().getUtf8(handle);
+        writeVarint(out, utf8.length + 1);
+        out.write(utf8);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        // Dictionary and run-length encoding already remove most of the redundancy
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int epochDay(LocalDate date) {
+        return date == null ? NO_INT : (int) date.toEpochDay();
+    }
+
+    private static long epochMillis(LocalDateTime time) {
+        return time == null ? NO_LONG : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -5,6 +5,14 @@ import java.util.Map;
 public class DatabaseManager {
     private static final String USERS_FILE = "users.dat";
     private static Map<String, UserData> users = new HashMap<>();
+    // users.dat is only rewritten when an account changed, so an unchanged file keeps the
+    // startup image valid
+    private static boolean usersChanged;
+    private static long loadMillis;
+    // One past the highest id loaded or handed out, so a deleted user's id is not given to the
+    // next signup (sessions and events identify users by id). Only the very highest id can come
+    // back after a restart; SessionRegistry checks usernames for that case.
+    private static int nextId = 1;
     
     static class UserData implements Serializable {
         int id;
@@ -20,31 +28,53 @@ public class DatabaseManager {
         }
     }
 
-    public static void initializeDatabase() {
-        loadUsers();
+    public static synchronized void initializeDatabase() {
+        long start = System.currentTimeMillis();
+        StartupImage image = StartupImage.get();
+        if (image != null) {
+            users = new HashMap<>(image.getUsers());
+            System.out.println("Loaded " + users.size() + " existing users from the startup image.");
+        } else {
+            loadUsers();
+        }
+        for (UserData userData : users.values()) {
+            nextId = Math.max(nextId, userData.id + 1);
+        }
+        loadMillis = System.currentTimeMillis() - start;
         System.out.println("User storage initialized.");
     }
 
+    public static synchronized long getLoadMillis() {
+        return loadMillis;
+    }
+
+    // Copy of every account, for the startup image
+    static synchronized Map<String, UserData> snapshotUsers() {
+        return new HashMap<>(users);
+    }
+
     @SuppressWarnings("unchecked")
     private static void loadUsers() {
-        File file = new File(USERS_FILE);
-        if (file.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                users = (Map<String, UserData>) ois.readObject();
+        try {
+            Map<String, UserData> loaded = SafeFileStore.read(USERS_FILE,
+                data -> (Map<String, UserData>) PersistenceExecutor.deserialize(data));
+            if (loaded != null) {
+                users = loaded;
                 System.out.println("Loaded " + users.size() + " existing users.");
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Starting with fresh user database.");
-                users = new HashMap<>();
             }
+        } catch (IOException e) {
+            System.out.println("Could not recover user database: " + e.getMessage());
+            System.out.println("Starting with fresh user database.");
+            users = new HashMap<>();
         }
     }
     
     private static void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USERS_FILE))) {
-            oos.writeObject(users);
-        } catch (IOException e) {
-            System.out.println("Error saving users: " + e.getMessage());
-        }
+        PersistenceExecutor.getInstance().submit(USERS_FILE, () -> {
+            synchronized (DatabaseManager.class) {
+                return PersistenceExecutor.serialize(users);
+            }
+        });
     }
     
     private static boolean isValidUsername(String username) {
@@ -54,7 +84,7 @@ public class DatabaseManager {
         return username.matches("^[a-zA-Z0-9_]+$");
     }
 
-    public static boolean registerUser(String username, String password, String name) {
+    public static synchronized boolean registerUser(String username, String password, String name) {
         if (!isValidUsername(username)) {
             System.out.println("Invalid username! Use only letters, numbers, and underscores.");
             return false;
@@ -68,13 +98,14 @@ public class DatabaseManager {
             return false;
         }
         
-        int newId = users.size() + 1;
+        int newId = nextId++;
         users.put(usernameLower, new UserData(newId, username, password, name));
+        usersChanged = true;
         saveUsers();
         return true;
     }
 
-    public static User loginUser(String username, String password) {
+    public static synchronized User loginUser(String username, String password) {
         String usernameLower = username.toLowerCase();
         UserData userData = users.get(usernameLower);
         
@@ -85,11 +116,12 @@ public class DatabaseManager {
         return null;
     }
 
-    public static boolean deleteUser(int userId, String password) {
+    public static synchronized boolean deleteUser(int userId, String password) {
         for (Map.Entry<String, UserData> entry : users.entrySet()) {
             UserData userData = entry.getValue();
             if (userData.id == userId && userData.password.equals(password)) {
                 users.remove(entry.getKey());
+                usersChanged = true;
                 saveUsers();
                 return true;
             }
@@ -97,12 +129,29 @@ public class DatabaseManager {
         return false;
     }
 
-    public static boolean usernameExists(String username) {
+    // Looks up an account without checking the password. Trusted in-process callers only
+    // (batch jobs, the soak test, the API right after signup); never expose it to clients.
+    static synchronized User findUser(String username) {
+        UserData userData = users.get(username.toLowerCase());
+        if (userData == null) {
+            return null;
+        }
+        return new User(userData.id, userData.username, userData.name);
+    }
+
+    public static synchronized boolean usernameExists(String username) {
         return users.containsKey(username.toLowerCase());
     }
 
     public static void closeConnection() {
-        saveUsers();
+        synchronized (DatabaseManager.class) {
+            if (usersChanged) {
+                saveUsers();
+                usersChanged = false;
+            }
+        }
+        // Also drains any pending catalog saves before the process exits
+        PersistenceExecutor.getInstance().close();
         System.out.println("User data saved.");
     }
 }
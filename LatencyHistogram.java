@@ -0,0 +1,47 @@
+import java.util.Arrays;
+
+// Log-linear latency histogram: 16 sub-buckets per power of two, about 6% precision,
+// fixed size however many samples it records. Safe to share between threads.
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+    private long count;
+    private long max;
+
+    public synchronized void record(long nanos) {
+        nanos = Math.max(1, nanos);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = exponent < 4 ? (int) nanos : (int) ((nanos >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+        counts[exponent * SUB_BUCKETS + sub]++;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    public synchronized long percentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target && counts[i] > 0) {
+                int exponent = i / SUB_BUCKETS;
+                int sub = i % SUB_BUCKETS;
+                return exponent < 4 ? sub : (long) (SUB_BUCKETS + sub) << (exponent - 4);
+            }
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+}
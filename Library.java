@@ -1,197 +1,546 @@
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
 
 public class Library {
-    private static final String BOOKS_FILE = "books.dat";
-    private final List<Book> bookCatalog;
-    private final List<User> registeredUsers;
-    private final List<RentTransaction> activeRentalTransactions;
+    // User id on events that no particular user caused (seeding, expiry without a donor)
+    public static final int NO_USER = 0;
+
+    private final ShardedCatalog bookCatalog;
+    // Built in the background after the catalog loads; null until then, and readers fall
+    // back to scanning the catalog. Changes made meanwhile are queued and replayed.
+    private volatile TrigramIndex titleIndex;
+    private volatile CatalogIndexes indexes;
+    private List<IndexChange> pendingIndexChanges = new ArrayList<>();   // guarded by indexLock
+    private final Object indexLock = new Object();
+    private final CountDownLatch indexesBuilt = new CountDownLatch(1);
+    private long loadMillis;
+    private boolean brandNew;
+    private final SessionRegistry sessions;
+    private final LibraryEvents events;
+    private final RentalLedger ledger;
+    private final PersistenceExecutor persistence;
+    private ChangeStream changes;
+    private RentalHistory history;
+    private volatile boolean savesDeferred;
+    // Public operations pass admission control before taking any catalog lock,
+    // so a throttled or queued caller never holds up other sessions
+    private volatile AdmissionControl admission;
 
     public Library() {
-        this.bookCatalog = new ArrayList<>();
-        this.registeredUsers = new ArrayList<>();
-        this.activeRentalTransactions = new ArrayList<>();
+        this.bookCatalog = new ShardedCatalog(Integer.getInteger("library.shards", 8));
+        this.sessions = SessionRegistry.fromSystemProperties();
+        this.events = new LibraryEvents(Integer.getInteger("library.eventBufferSize", 8192));
+        this.ledger = new RentalLedger();
+        events.subscribe(ledger);
+        this.persistence = PersistenceExecutor.getInstance();
+        this.admission = AdmissionControl.fromSystemProperties();
         loadBooks();
+        openChangeStream();
+        openRentalHistory();
+        buildIndexes(bookCatalog.snapshot());
+    }
+
+    // A catalog change made while the indexes were being built
+    private static class IndexChange {
+        enum Kind { ADD, REMOVE, UPDATE }
+
+        final Kind kind;
+        final Book book;
+
+        IndexChange(Kind kind, Book book) {
+            this.kind = kind;
+            this.book = book;
+        }
+    }
+    
+    // Replicas tail this file (see CatalogReplica); enabled with -Dlibrary.changeLog=<file>
+    private void openChangeStream() {
+        String changeLog = System.getProperty("library.changeLog");
+        if (changeLog == null) {
+            return;
+        }
+        try {
+            changes = new ChangeStream(changeLog, bookCatalog::snapshot);
+            events.subscribe(changes);
+        } catch (IOException e) {
+            System.out.println("Could not open change stream " + changeLog + ": " + e.getMessage());
+        }
+    }
+    
+    // ColumnarExport reads rentals from here; enabled with -Dlibrary.rentalHistory=<directory>
+    private void openRentalHistory() {
+        String directory = System.getProperty("library.rentalHistory");
+        if (directory == null) {
+            return;
+        }
+        try {
+            history = new RentalHistory(directory);
+            events.subscribe(history);
+        } catch (IOException e) {
+            System.out.println("Could not open rental history " + directory + ": " + e.getMessage());
+        }
+    }
+    
+    // There is no library-wide lock. Every change to a book happens while holding the write
+    // lock of its catalog shard (bookCatalog.writeLockFor), so requests for books in different
+    // shards run in parallel. The three helpers below are called with that lock held, which
+    // keeps index updates and events for one book in the order the changes were made.
+    private void addToCatalog(Book book) {
+        bookCatalog.add(book);
+        indexChange(IndexChange.Kind.ADD, book);
+    }
+    
+    private void removeFromCatalog(Book book) {
+        bookCatalog.remove(book);
+        indexChange(IndexChange.Kind.REMOVE, book);
+    }
+    
+    // For books that stay in the catalog but change state (rented, returned)
+    private void updateInCatalog(Book book) {
+        bookCatalog.markDirty(book);
+        indexChange(IndexChange.Kind.UPDATE, book);
+    }
+    
+    // Queued while the indexes are being built, applied directly once they are in place
+    private void indexChange(IndexChange.Kind kind, Book book) {
+        TrigramIndex currentTitleIndex;
+        CatalogIndexes currentIndexes;
+        synchronized (indexLock) {
+            if (pendingIndexChanges != null) {
+                pendingIndexChanges.add(new IndexChange(kind, book));
+                return;
+            }
+            currentTitleIndex = titleIndex;
+            currentIndexes = indexes;
+        }
+        applyIndexChange(currentTitleIndex, currentIndexes, kind, book);
+    }
+    
+    private static void applyIndexChange(TrigramIndex titleIndex, CatalogIndexes indexes, IndexChange.Kind kind, Book book) {
+        switch (kind) {
+            case ADD -> {
+                titleIndex.add(book);
+                indexes.add(book);
+            }
+            case REMOVE -> {
+                titleIndex.remove(book);
+                indexes.remove(book);
+            }
+            case UPDATE -> indexes.updateAvailability(book);
+        }
     }
     
-    @SuppressWarnings("unchecked")
     private void loadBooks() {
-        File file = new File(BOOKS_FILE);
-        if (file.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                bookCatalog.addAll((List<Book>) ois.readObject());
-                System.out.println("Loaded " + bookCatalog.size() + " existing books.");
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Starting with fresh book catalog.");
+        long start = System.currentTimeMillis();
+        brandNew = !ShardedCatalog.hasSavedFiles() && !new File(StartupImage.FILE).exists();
+        StartupImage image = StartupImage.get();
+        int loaded;
+        if (image != null) {
+            bookCatalog.loadAll(image.getBooks());
+            loaded = bookCatalog.size();
+        } else {
+            loaded = bookCatalog.load();
+        }
+        loadMillis = System.currentTimeMillis() - start;
+        if (loaded > 0) {
+            System.out.println("Loaded " + loaded + " existing books from "
+                + (image != null ? "the startup image" : bookCatalog.getShardCount() + " shards")
+                + " in " + loadMillis + " ms.");
+        }
+    }
+    
+    // Indexing a large catalog takes longer than loading it, so the library is usable
+    // (with scans) while this runs
+    private void buildIndexes(List<Book> books) {
+        Thread builder = new Thread(() -> {
+            TrigramIndex newTitleIndex = new TrigramIndex();
+            CatalogIndexes newIndexes = new CatalogIndexes();
+            for (Book book : books) {
+                newTitleIndex.add(book);
+                newIndexes.add(book);
+            }
+            synchronized (indexLock) {
+                for (IndexChange change : pendingIndexChanges) {
+                    applyIndexChange(newTitleIndex, newIndexes, change.kind, change.book);
+                }
+                pendingIndexChanges = null;
+                titleIndex = newTitleIndex;
+                indexes = newIndexes;
             }
+            indexesBuilt.countDown();
+        }, "library-index-build");
+        builder.setDaemon(true);
+        builder.start();
+    }
+    
+    // Time spent reading the catalog at startup
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+    
+    // True if no catalog had ever been saved when this library started
+    public boolean isBrandNew() {
+        return brandNew;
+    }
+    
+    // Blocks until search and filter are served from the indexes rather than by scanning
+    public void awaitIndexes() throws InterruptedException {
+        indexesBuilt.await();
+    }
+    
+    // Queues a save of the shards changed since the last save
+    private CompletableFuture<Void> saveBooks() {
+        if (savesDeferred) {
+            return CompletableFuture.completedFuture(null);
         }
+        return bookCatalog.saveDirty(persistence);
     }
     
-    private void saveBooks() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(BOOKS_FILE))) {
-            oos.writeObject(bookCatalog);
-        } catch (IOException e) {
-            System.out.println("Error saving books: " + e.getMessage());
+    // While deferred, mutations only mark their shards dirty and save() writes them in one go
+    public void setSavesDeferred(boolean deferred) {
+        this.savesDeferred = deferred;
+    }
+    
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+    
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+    
+    public CompletableFuture<Void> save() {
+        return bookCatalog.saveDirty(persistence);
+    }
+    
+    // Delivers queued events, then waits for pending saves
+    public void flush() {
+        events.drain();
+        if (history != null) {
+            try {
+                history.sync();
+            } catch (IOException e) {
+                System.out.println("Error syncing rental history: " + e.getMessage());
+            }
         }
+        persistence.flush();
+    }
+
+    // Subscribe here for notifications, metrics and the like (see LibraryEvents)
+    public LibraryEvents getEvents() {
+        return events;
+    }
+
+    public RentalLedger getLedger() {
+        return ledger;
     }
 
     public void addBook(Book book) {
-        bookCatalog.add(book);
+        Lock lock = bookCatalog.writeLockFor(book.getIsbn());
+        lock.lock();
+        try {
+            addToCatalog(book);
+            events.publish(LibraryEvents.Type.BOOK_ADDED, book, NO_USER, 0);
+        } finally {
+            lock.unlock();
+        }
         saveBooks();
     }
 
-    public void acceptPermanentDonation(User donor, String isbn, String title, String author, double rentalPrice) {
-        if (isbnExists(isbn)) {
-            System.out.println("\nError: ISBN " + isbn + " already exists. Please choose a different ISBN.");
-            return;
+    // Returns false if the donation was refused
+    public boolean acceptPermanentDonation(User donor, String isbn, String title, String author, double rentalPrice) throws RateLimitExceededException {
+        admission.acquire(donor.getId(), AdmissionControl.Operation.DONATE);
+        return doAcceptPermanentDonation(donor, isbn, title, author, rentalPrice);
+    }
+    
+    private boolean doAcceptPermanentDonation(User donor, String isbn, String title, String author, double rentalPrice) {
+        Lock lock = bookCatalog.writeLockFor(isbn);
+        lock.lock();
+        try {
+            if (isbnExists(isbn)) {
+                System.out.println("\nError: ISBN " + isbn + " already exists. Please choose a different ISBN.");
+                return false;
+            }
+            
+            Book book = new Book(isbn, title, author, rentalPrice);
+            addToCatalog(book);
+            events.publish(LibraryEvents.Type.BOOK_DONATED, book, donor.getId(), 0);
+        } finally {
+            lock.unlock();
         }
-        
-        Book book = new Book(isbn, title, author, rentalPrice);
-        bookCatalog.add(book);
         saveBooks();
         System.out.println("\nThank you, " + donor.getName() + "!");
         System.out.println("'" + title + "' has been added to the library.");
+        return true;
     }
     
-    public void acceptTemporaryLoan(User lender, String isbn, String title, String author, 
-                                   double rentalPrice, int months) {
+    // Returns false if the loan was refused
+    public boolean acceptTemporaryLoan(User lender, String isbn, String title, String author, 
+                                   double rentalPrice, int months) throws RateLimitExceededException {
+        admission.acquire(lender.getId(), AdmissionControl.Operation.DONATE);
+        return doAcceptTemporaryLoan(lender, isbn, title, author, rentalPrice, months);
+    }
+    
+    private boolean doAcceptTemporaryLoan(User lender, String isbn, String title, String author, 
+                                          double rentalPrice, int months) {
         if (months < 1) {
             System.out.println("Error: Minimum loan period is 1 month.");
-            return;
+            return false;
         }
         
-        if (isbnExists(isbn)) {
-            System.out.println("\nError: ISBN " + isbn + " already exists. Please choose a different ISBN.");
-            return;
+        LocalDate lendUntilDate = LibraryClock.today().plusMonths(months);
+        Lock lock = bookCatalog.writeLockFor(isbn);
+        lock.lock();
+        try {
+            if (isbnExists(isbn)) {
+                System.out.println("\nError: ISBN " + isbn + " already exists. Please choose a different ISBN.");
+                return false;
+            }
+            
+            Book book = new Book(isbn, title, author, rentalPrice);
+            book.setDonation(lender.getId(), "TEMPORARY", lendUntilDate);
+            addToCatalog(book);
+            events.publish(LibraryEvents.Type.BOOK_DONATED, book, lender.getId(), 0);
+        } finally {
+            lock.unlock();
         }
-        
-        Book book = new Book(isbn, title, author, rentalPrice);
-        LocalDate lendUntilDate = LocalDate.now().plusMonths(months);
-        book.setDonation(lender.getId(), "TEMPORARY", lendUntilDate);
-        bookCatalog.add(book);
         saveBooks();
         
         System.out.println("\nThank you, " + lender.getName() + "!");
         System.out.println("'" + title + "' added to library.");
         System.out.println("Will be returned on: " + lendUntilDate);
+        return true;
     }
     
-    public void processExpiredLoans() {
-        List<Book> expiredBooks = new ArrayList<>();
-        for (Book book : bookCatalog) {
-            if (book.isTemporaryLoan() && book.isExpired()) {
-                expiredBooks.add(book);
+    // Returns the number of loans that expired
+    public int processExpiredLoans() {
+        List<Book> expiredBooks;
+        if (indexes != null) {
+            expiredBooks = indexes.expiredLoans(LibraryClock.today());
+        } else {
+            expiredBooks = new ArrayList<>();
+            for (Book book : bookCatalog.snapshot()) {
+                if (book.isTemporaryLoan() && book.isExpired()) {
+                    expiredBooks.add(book);
+                }
             }
         }
         
-        if (!expiredBooks.isEmpty()) {
-            System.out.println("\nNotice: " + expiredBooks.size() + " temporary loan(s) expired.");
-            for (Book book : expiredBooks) {
+        // Another caller may have expired some of them meanwhile; only this book instance counts
+        List<Book> removed = new ArrayList<>();
+        for (Book book : expiredBooks) {
+            Lock lock = bookCatalog.writeLockFor(book.getIsbn());
+            lock.lock();
+            try {
+                if (bookCatalog.get(book.getIsbn()) == book) {
+                    removeFromCatalog(book);
+                    events.publish(LibraryEvents.Type.LOAN_EXPIRED, book, book.getDonorUserId() == null ? NO_USER : book.getDonorUserId(), 0);
+                    removed.add(book);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        if (!removed.isEmpty()) {
+            System.out.println("\nNotice: " + removed.size() + " temporary loan(s) expired.");
+            for (Book book : removed) {
                 System.out.println("  - " + book.getTitle() + " (returned to donor)");
-                bookCatalog.remove(book);
             }
             saveBooks();
         }
+        return removed.size();
     }
 
     public void donateBook(Book book) {
-        bookCatalog.add(book);
+        Lock lock = bookCatalog.writeLockFor(book.getIsbn());
+        lock.lock();
+        try {
+            addToCatalog(book);
+            events.publish(LibraryEvents.Type.BOOK_DONATED, book, NO_USER, 0);
+        } finally {
+            lock.unlock();
+        }
         System.out.println("Thank you for donating: " + book.getTitle());
     }
 
-    public void registerUser(User user) {
-        registeredUsers.add(user);
+    // Creates an account; returns false if the username is invalid or taken
+    public boolean createAccount(String username, String password, String name) {
+        if (!DatabaseManager.registerUser(username, password, name)) {
+            return false;
+        }
+        events.publishUserRegistered(DatabaseManager.findUser(username).getId());
+        return true;
+    }
+
+    // Starts a session, or returns the one the user already has; use the returned User from
+    // then on, it is the instance that tracks the user's borrowed books
+    public User registerUser(User user) {
+        return sessions.login(user);
+    }
+
+    // Starts or reuses the user's session and returns its token, for API clients
+    public String openSession(User user) {
+        return sessions.loginForToken(user);
+    }
+
+    // The logged-in user holding this session token, or null
+    public User getSessionByToken(String token) {
+        return sessions.getByToken(token);
+    }
+
+    // Drops sessions idle past the timeout; returns how many were evicted
+    public int evictIdleSessions() {
+        return sessions.evictIdle();
     }
 
-    public void adoptBook(String isbn, int userId) throws BookNotFoundException, UserNotFoundException, BookNotAvailableException {
-        Book book = findBookByIsbn(isbn);
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public void adoptBook(String isbn, int userId) throws BookNotFoundException, UserNotFoundException, BookNotAvailableException, RateLimitExceededException {
+        admission.acquire(userId, AdmissionControl.Operation.ADOPT);
+        doAdoptBook(isbn, userId);
+    }
+    
+    private void doAdoptBook(String isbn, int userId) throws BookNotFoundException, UserNotFoundException, BookNotAvailableException {
         User user = findUserById(userId);
+        Lock lock = bookCatalog.writeLockFor(isbn);
+        lock.lock();
+        try {
+            Book book = findBookByIsbn(isbn);
 
-        if (!book.isFree()) {
-            throw new BookNotAvailableException("Only free books can be adopted. This book costs $" + book.getRentalPricePerDay() + "/day.");
-        }
+            if (!book.isFree()) {
+                throw new BookNotAvailableException("Only free books can be adopted. This book costs $" + book.getRentalPricePerDay() + "/day.");
+            }
 
-        if (!book.isAvailable()) {
-            throw new BookNotAvailableException("Book is not available");
-        }
+            if (!book.isAvailable()) {
+                throw new BookNotAvailableException("Book is not available");
+            }
 
-        // Remove from catalog since adopted books leave the library
-        bookCatalog.remove(book);
+            // Remove from catalog since adopted books leave the library
+            removeFromCatalog(book);
+            events.publish(LibraryEvents.Type.BOOK_ADOPTED, book, userId, 0);
+            user.addBook(book);
+        } finally {
+            lock.unlock();
+        }
         saveBooks();
-        user.addBook(book);
         System.out.println("Book adopted by " + user.getName() + ". Donate it back to return it to the library.");
     }
 
-    public void returnBook(String isbn, int userId) throws BookNotFoundException, UserNotFoundException {
+    // Returns the late fee charged, 0 if the book was on time
+    public double returnBook(String isbn, int userId) throws BookNotFoundException, UserNotFoundException, BookNotBorrowedException, RateLimitExceededException {
+        admission.acquire(userId, AdmissionControl.Operation.RETURN);
+        return doReturnBook(isbn, userId);
+    }
+    
+    private double doReturnBook(String isbn, int userId) throws BookNotFoundException, UserNotFoundException, BookNotBorrowedException {
         User user = findUserById(userId);
         
         if (user.getBooks().isEmpty()) {
-            System.out.println("You have no borrowed books to return.");
-            return;
+            throw new BookNotBorrowedException("You have no borrowed books to return.");
         }
         
-        Book book = findBookByIsbn(isbn);
-        
-        // Check if user actually borrowed this book
-        boolean userHasBook = false;
-        for (Book borrowedBook : user.getBooks()) {
-            if (borrowedBook.getIsbn().equals(book.getIsbn())) {
-                userHasBook = true;
-                break;
+        double lateFee;
+        int daysLate;
+        Lock lock = bookCatalog.writeLockFor(isbn);
+        lock.lock();
+        try {
+            Book book = findBookByIsbn(isbn);
+            
+            // Check if user actually borrowed this book; only changes under this shard's lock
+            boolean userHasBook = false;
+            for (Book borrowedBook : user.getBooks()) {
+                if (borrowedBook.getIsbn().equals(book.getIsbn())) {
+                    userHasBook = true;
+                    break;
+                }
             }
+            
+            if (!userHasBook) {
+                throw new BookNotBorrowedException("You haven't borrowed this book.");
+            }
+            
+            lateFee = book.calculateLateFee();
+            daysLate = book.getDaysLate();
+            
+            book.returnBook();
+            user.removeBook(book);
+            updateInCatalog(book);
+            events.publish(LibraryEvents.Type.BOOK_RETURNED, book, userId, lateFee);
+        } finally {
+            lock.unlock();
         }
-        
-        if (!userHasBook) {
-            System.out.println("You haven't borrowed this book.");
-            return;
-        }
-        
-        double lateFee = book.calculateLateFee();
-        
-        book.returnBook();
-        user.removeBook(book);
         saveBooks();
         
         System.out.println("Book returned successfully by " + user.getName());
         if (lateFee > 0) {
             System.out.println("Late fee: $" + String.format("%.2f", lateFee));
-            System.out.println("(Book was " + book.getDaysLate() + " day(s) late at 50% rental rate)");
+            System.out.println("(Book was " + daysLate + " day(s) late at 50% rental rate)");
         }
+        return lateFee;
     }
 
-    public void rentBook(String isbn, int userId, int days) throws BookNotFoundException, UserNotFoundException, BookNotAvailableException {
-        Book book = findBookByIsbn(isbn);
+    public void rentBook(String isbn, int userId, int days) throws BookNotFoundException, UserNotFoundException, BookNotAvailableException, RateLimitExceededException {
+        admission.acquire(userId, AdmissionControl.Operation.RENT);
+        doRentBook(isbn, userId, days);
+    }
+    
+    private void doRentBook(String isbn, int userId, int days) throws BookNotFoundException, UserNotFoundException, BookNotAvailableException {
         User user = findUserById(userId);
+        RentTransaction transaction;
+        LocalDate dueDate;
+        Lock lock = bookCatalog.writeLockFor(isbn);
+        lock.lock();
+        try {
+            Book book = findBookByIsbn(isbn);
 
-        if (!book.isAvailable()) {
-            throw new BookNotAvailableException("Book is not available for renting");
-        }
+            if (!book.isAvailable()) {
+                throw new BookNotAvailableException("Book is not available for renting");
+            }
 
-        book.borrow();
-        book.setRentalDueDate(days);
-        user.addBook(book);
-        RentTransaction transaction = new RentTransaction(book, user, days);
-        activeRentalTransactions.add(transaction);
+            book.borrow();
+            book.setRentalDueDate(days);
+            dueDate = book.getDueDate();
+            user.addBook(book);
+            transaction = new RentTransaction(book, user, days);
+            updateInCatalog(book);
+            events.publish(LibraryEvents.Type.BOOK_RENTED, book, userId, transaction.getTotalCost());
+        } finally {
+            lock.unlock();
+        }
         saveBooks();
         
         System.out.println("Book rented successfully!");
         System.out.println(transaction);
-        System.out.println("Due date: " + book.getDueDate());
+        System.out.println("Due date: " + dueDate);
         System.out.println("Late fee: 50% of rental rate per day after due date.");
     }
 
-    public void showAllBooks() {
+    public void showAllBooks(int userId) throws RateLimitExceededException {
+        admission.acquire(userId, AdmissionControl.Operation.LIST);
+        showAllBooks();
+    }
+    
+    // In ISBN order, like every listing; the shards keep no insertion order
+    private void showAllBooks() {
         if (bookCatalog.isEmpty()) {
             System.out.println("No books in the library");
             return;
         }
 
+        List<Book> books = getAllBooks();
         List<Book> available = new ArrayList<>();
         List<Book> unavailable = new ArrayList<>();
         
-        for (Book book : bookCatalog) {
+        for (Book book : books) {
             if (book.isAvailable()) {
                 available.add(book);
             } else {
@@ -219,16 +568,26 @@ public class Library {
         System.out.println("==========================\n");
     }
 
-    public void searchBookByTitle(String title) {
-        List<Book> found = new ArrayList<>();
-        for (Book book : bookCatalog) {
-            if (book.getTitle().toLowerCase().contains(title.toLowerCase())) {
-                found.add(book);
-            }
-        }
+    // Every book, ordered by ISBN
+    public List<Book> getAllBooks() {
+        List<Book> books = bookCatalog.snapshot();
+        books.sort(ShardedCatalog.BY_ISBN);
+        return books;
+    }
+
+    public void searchBookByTitle(String title, int userId) throws RateLimitExceededException {
+        admission.acquire(userId, AdmissionControl.Operation.SEARCH);
+        List<Book> found = findBooksByTitle(title);
 
         if (found.isEmpty()) {
             System.out.println("No books found with title containing: " + title);
+            List<Book> suggestions = suggestBooks(title, 5);
+            if (!suggestions.isEmpty()) {
+                System.out.println("\nDid you mean:");
+                for (Book book : suggestions) {
+                    System.out.println(book);
+                }
+            }
         } else {
             System.out.println("\n===== Search Results =====");
             for (Book book : found) {
@@ -238,6 +597,62 @@ public class Library {
         }
     }
     
+    // Case-insensitive title substring match, narrowed through the trigram index when possible
+    public List<Book> findBooksByTitle(String title) {
+        TrigramIndex index = titleIndex;
+        List<Book> found = index == null ? null : index.titleContains(title);
+        if (found == null) {
+            found = new ArrayList<>();
+            for (Book book : bookCatalog.snapshot()) {
+                if (book.getTitle().toLowerCase().contains(title.toLowerCase())) {
+                    found.add(book);
+                }
+            }
+        }
+        found.sort(ShardedCatalog.BY_ISBN);
+        return found;
+    }
+    
+    // Filtered listing served from the secondary indexes
+    public List<Book> findBooks(BookQuery query) {
+        CatalogIndexes index = indexes;
+        List<Book> found;
+        if (index != null) {
+            found = index.find(query);
+        } else {
+            found = new ArrayList<>();
+            for (Book book : bookCatalog.snapshot()) {
+                if (query.matches(book)) {
+                    found.add(book);
+                }
+            }
+        }
+        found.sort(ShardedCatalog.BY_ISBN);
+        return found;
+    }
+    
+    public void filterBooks(BookQuery query, int userId) throws RateLimitExceededException {
+        admission.acquire(userId, AdmissionControl.Operation.LIST);
+        List<Book> found = findBooks(query);
+        
+        if (found.isEmpty()) {
+            System.out.println("No books match the filter.");
+        } else {
+            System.out.println("\n===== Filtered Books =====");
+            for (Book book : found) {
+                System.out.println(book);
+            }
+            System.out.println("==========================\n");
+        }
+    }
+    
+    // Closest title/author matches for a query that may be misspelled, best first
+    public List<Book> suggestBooks(String query, int limit) {
+        // No suggestions until the index is built
+        TrigramIndex index = titleIndex;
+        return index == null ? new ArrayList<>() : index.fuzzySearch(query, limit);
+    }
+    
     public void showMyBooks(User user) {
         List<Book> books = user.getBooks();
         if (books.isEmpty()) {
@@ -252,42 +667,32 @@ public class Library {
         System.out.println("================================\n");
     }
     
+    // Copy of the user's borrowed books
+    public List<Book> getBorrowedBooks(User user) {
+        return new ArrayList<>(user.getBooks());
+    }
+    
     public void removeUser(User user) {
-        registeredUsers.remove(user);
+        sessions.remove(user.getId());
     }
 
     private Book findBookByIsbn(String isbn) throws BookNotFoundException {
-        String normalizedIsbn = normalizeIsbn(isbn);
-        
-        for (Book book : bookCatalog) {
-            if (normalizeIsbn(book.getIsbn()).equals(normalizedIsbn)) {
-                return book;
-            }
+        Book book = bookCatalog.get(isbn);
+        if (book == null) {
+            throw new BookNotFoundException("Book with ISBN " + isbn + " not found");
         }
-        throw new BookNotFoundException("Book with ISBN " + isbn + " not found");
-    }
-    
-    private String normalizeIsbn(String isbn) {
-        // Strip leading zeros so "001" and "1" match
-        return isbn.replaceFirst("^0+(?!$)", "").toLowerCase();
+        return book;
     }
     
     private boolean isbnExists(String isbn) {
-        String normalizedIsbn = normalizeIsbn(isbn);
-        for (Book book : bookCatalog) {
-            if (normalizeIsbn(book.getIsbn()).equals(normalizedIsbn)) {
-                return true;
-            }
-        }
-        return false;
+        return bookCatalog.contains(isbn);
     }
 
     private User findUserById(int userId) throws UserNotFoundException {
-        for (User user : registeredUsers) {
-            if (user.getId() == userId) {
-                return user;
-            }
+        User user = sessions.get(userId);
+        if (user == null) {
+            throw new UserNotFoundException("User with ID " + userId + " not found");
         }
-        throw new UserNotFoundException("User with ID " + userId + " not found");
+        return user;
     }
 }
@@ -0,0 +1,85 @@
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+// The library's notion of "now" for due dates, late fees and loan expiry.
+//
+// today() and now() return values cached at the last tick instead of reading the system
+// clock on every call (listings ask every book how long it has been borrowed). With the
+// system clock a daemon thread ticks once a second. In simulation mode time stands still
+// until advance() moves it, so months of rentals and expiries can run in seconds.
+public class LibraryClock {
+    private static final long TICK_MILLIS = 1000;
+
+    private static volatile Clock clock = Clock.systemDefaultZone();
+    private static Instant simulatedInstant;   // where a simulated clock is frozen
+    private static volatile LocalDateTime now = LocalDateTime.now(clock);
+    private static volatile LocalDate today = now.toLocalDate();
+    private static volatile boolean simulated = false;
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!simulated) {
+                    tick();
+                }
+            }
+        }, "library-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private LibraryClock() {
+    }
+
+    public static LocalDate today() {
+        return today;
+    }
+
+    public static LocalDateTime now() {
+        return now;
+    }
+
+    // Re-reads the underlying clock
+    public static synchronized void tick() {
+        LocalDateTime current = LocalDateTime.now(clock);
+        now = current;
+        today = current.toLocalDate();
+    }
+
+    // Freezes time at start; only advance() moves it from here on
+    public static synchronized void useSimulation(LocalDateTime start) {
+        simulated = true;
+        simulatedInstant = start.atZone(ZoneId.systemDefault()).toInstant();
+        clock = Clock.fixed(simulatedInstant, ZoneId.systemDefault());
+        tick();
+    }
+
+    public static synchronized void advance(Duration amount) {
+        if (!simulated) {
+            throw new IllegalStateException("Time can only be advanced in simulation mode");
+        }
+        // A fresh fixed clock each time; offsetting the previous one would nest a clock per step
+        simulatedInstant = simulatedInstant.plus(amount);
+        clock = Clock.fixed(simulatedInstant, ZoneId.systemDefault());
+        tick();
+    }
+
+    public static synchronized void useSystemClock() {
+        simulated = false;
+        clock = Clock.systemDefaultZone();
+        tick();
+    }
+
+    public static boolean isSimulated() {
+        return simulated;
+    }
+}
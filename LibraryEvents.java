@@ -0,0 +1,228 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// In-process bus for library domain events (book rented, returned, adopted, ...).
+//
+// Library publishes an event and carries on; a single dispatcher thread hands each event to
+// every subscriber in order. Events live in a fixed ring of preallocated slots that are
+// filled in place, so publishing allocates nothing. When subscribers fall a full ring
+// behind, publishers wait for a free slot instead of dropping events or growing a queue.
+//
+// Subscribers run on the dispatcher thread. They must not keep the Event they are given
+// (the slot is reused) and must not call back into Library or take a catalog shard lock:
+// the publisher may be holding one while it waits for room.
+public class LibraryEvents {
+    public enum Type { BOOK_ADDED, BOOK_DONATED, BOOK_RENTED, BOOK_RETURNED, BOOK_ADOPTED, LOAN_EXPIRED, USER_REGISTERED }
+
+    public interface Subscriber {
+        void onEvent(Event event);
+    }
+
+    public static final class Event {
+        private volatile long published = -1;   // sequence of the event in this slot, once filled
+        private Type type;
+        private long timestampMillis;
+        private Book book;
+        private String isbn;
+        private int userId;
+        private LocalDateTime borrowedAt;
+        private LocalDate dueDate;
+        private double amount;
+
+        public Type getType() {
+            return type;
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        // Title, author and price never change; anything else should be read from the event
+        public Book getBook() {
+            return book;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        // Loan start and due date at the time of a BOOK_RENTED event
+        public LocalDateTime getBorrowedAt() {
+            return borrowedAt;
+        }
+
+        public LocalDate getDueDate() {
+            return dueDate;
+        }
+
+        // Rental cost for BOOK_RENTED, late fee for BOOK_RETURNED, otherwise 0
+        public double getAmount() {
+            return amount;
+        }
+    }
+
+    private static final int SPINS = 100;
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+    private final Event[] ring;
+    private final int mask;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private volatile long dispatched = -1;
+    private volatile boolean dispatcherIdle;
+    private volatile boolean running = true;
+    private final Thread dispatcher;
+
+    // Back-pressure and delivery statistics
+    private final AtomicLong publisherWaits = new AtomicLong();
+    private final AtomicLong publisherWaitNanos = new AtomicLong();
+    private final long[] deliveredByType = new long[Type.values().length];
+    private long subscriberFailures;
+
+    // capacity is rounded up to a power of two
+    public LibraryEvents(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = size - 1;
+        this.dispatcher = new Thread(this::dispatchLoop, "library-events");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        // Deliver what is still queued when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "library-events-drain"));
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void publish(Type type, Book book, int userId, double amount) {
+        long sequence = claim();
+        Event event = ring[(int) sequence & mask];
+        event.type = type;
+        event.timestampMillis = System.currentTimeMillis();
+        event.book = book;
+        event.isbn = book.getIsbn();
+        event.userId = userId;
+        event.borrowedAt = book.getBorrowedAt();
+        event.dueDate = book.getDueDate();
+        event.amount = amount;
+        release(event, sequence);
+    }
+
+    public void publishUserRegistered(int userId) {
+        long sequence = claim();
+        Event event = ring[(int) sequence & mask];
+        event.type = Type.USER_REGISTERED;
+        event.timestampMillis = System.currentTimeMillis();
+        event.userId = userId;
+        event.amount = 0;
+        release(event, sequence);
+    }
+
+    // Claims the next sequence and waits until its slot has been dispatched
+    private long claim() {
+        long sequence = claimed.incrementAndGet();
+        if (sequence - ring.length > dispatched) {
+            long start = System.nanoTime();
+            for (int spins = 0; sequence - ring.length > dispatched; spins++) {
+                if (spins < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(WAIT_NANOS);
+                }
+            }
+            publisherWaits.incrementAndGet();
+            publisherWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+        return sequence;
+    }
+
+    private void release(Event event, long sequence) {
+        event.published = sequence;
+        if (dispatcherIdle) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private void dispatchLoop() {
+        long next = 0;
+        int spins = 0;
+        while (running || next <= claimed.get()) {
+            Event event = ring[(int) next & mask];
+            if (event.published != next) {
+                if (spins++ < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    // Publishers unpark us once they see this flag; re-check before sleeping
+                    dispatcherIdle = true;
+                    if (event.published != next) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                    dispatcherIdle = false;
+                }
+                continue;
+            }
+            spins = 0;
+            for (Subscriber subscriber : subscribers) {
+                try {
+                    subscriber.onEvent(event);
+                } catch (RuntimeException e) {
+                    subscriberFailures++;
+                    System.out.println("Error in event subscriber: " + e.getMessage());
+                }
+            }
+            deliveredByType[event.type.ordinal()]++;
+            // Drop references so the ring does not keep removed books alive
+            event.book = null;
+            event.isbn = null;
+            event.borrowedAt = null;
+            event.dueDate = null;
+            dispatched = next++;
+        }
+    }
+
+    // Waits until every event published so far has reached the subscribers
+    public void drain() {
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (dispatched < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(dispatcher);
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    public void close() {
+        drain();
+        running = false;
+        LockSupport.unpark(dispatcher);
+    }
+
+    public long getPending() {
+        return claimed.get() - dispatched;
+    }
+
+    // Read from another thread, so the counts may lag by an event or two
+    public String metricsReport() {
+        StringBuilder report = new StringBuilder("Events delivered:");
+        for (Type type : Type.values()) {
+            report.append(' ').append(type.name().toLowerCase()).append('=').append(deliveredByType[type.ordinal()]);
+        }
+        report.append(String.format("%nEvent queue: %d pending of %d, publishers waited %d times (%.1f ms), %d subscriber errors",
+            getPending(), ring.length, publisherWaits.get(), publisherWaitNanos.get() / 1e6, subscriberFailures));
+        return report.toString();
+    }
+}
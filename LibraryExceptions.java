@@ -17,3 +17,15 @@ class BookNotAvailableException extends Exception {
         super(message);
     }
 }
+
+class BookNotBorrowedException extends Exception {
+    public BookNotBorrowedException(String message) {
+        super(message);
+    }
+}
+
+class RateLimitExceededException extends Exception {
+    public RateLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,485 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// HTTP/JSON access to the library for kiosks and the web front-end, on the JDK's built-in server.
+//
+//   GET  /books                                   every book, streamed
+//   GET  /books/search?title=                     matches, or "did you mean" suggestions
+//   GET  /books/filter?author=&minPrice=&maxPrice=&free=&available=   streamed
+//   POST /users/register   username, password, name
+//   POST /users/login      username, password    returns a session token
+//   GET  /users/books                             books the user has borrowed
+//   POST /rent             isbn, days
+//   POST /return           isbn
+//   POST /donate           isbn, title, author, price [, months for a temporary loan]
+//   GET  /metrics                                 request count and latency per endpoint, admission counts
+//
+// Parameters come from the query string or a form-encoded body; responses are JSON.
+// Rent, return, donate and "my books" need the token from /users/login, sent as
+// "Authorization: Bearer <token>" or a token parameter; the user is whoever holds that session.
+// Rate limits apply per session, or per remote address for callers without one.
+// Listings are sorted copies of the catalog's book references, written out as a chunked stream
+// so the JSON is never built as one string.
+public class LibraryServer {
+    private static final int STREAM_BUFFER_BYTES = 16 * 1024;
+    private static final long EXPIRY_CHECK_MILLIS = 60_000;
+
+    private final Library library;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    private interface Endpoint {
+        void handle(Map<String, String> params, HttpExchange exchange) throws Exception;
+    }
+
+    // Maps to a JSON error response with the given HTTP status
+    private static class ApiException extends Exception {
+        final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    public LibraryServer(Library library, int port) throws IOException {
+        this.library = library;
+        // Headers and body go out in separate writes; without TCP_NODELAY every keep-alive
+        // response waits ~40 ms on the client's delayed ACK. Read once when the server loads.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+
+        route("GET", "/books", this::listBooks);
+        route("GET", "/books/search", this::searchBooks);
+        route("GET", "/books/filter", this::filterBooks);
+        route("POST", "/users/register", this::registerUser);
+        route("POST", "/users/login", this::login);
+        route("GET", "/users/books", this::borrowedBooks);
+        route("POST", "/rent", this::rentBook);
+        route("POST", "/return", this::returnBook);
+        route("POST", "/donate", this::donateBook);
+        route("GET", "/metrics", this::metrics);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            sendError(exchange, 404, "No such endpoint");
+            exchange.close();
+        });
+    }
+
+    // One virtual thread per request where the JDK has them (21+), otherwise a cached pool
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void start() {
+        server.start();
+        Thread expiry = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(EXPIRY_CHECK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                library.processExpiredLoans();
+                library.evictIdleSessions();
+            }
+        }, "library-expiry");
+        expiry.setDaemon(true);
+        expiry.start();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void route(String method, String path, Endpoint endpoint) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        latencies.put(method + " " + path, histogram);
+        server.createContext(path, exchange -> {
+            long start = System.nanoTime();
+            try {
+                // Contexts match by prefix; only the exact path belongs to this endpoint
+                if (!exchange.getRequestURI().getPath().equals(path)) {
+                    throw new ApiException(404, "No such endpoint");
+                }
+                if (!exchange.getRequestMethod().equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", method);
+                    throw new ApiException(405, "Use " + method + " for " + path);
+                }
+                endpoint.handle(readParams(exchange), exchange);
+            } catch (ApiException e) {
+                sendError(exchange, e.status, e.getMessage());
+            } catch (BookNotFoundException | UserNotFoundException e) {
+                sendError(exchange, 404, e.getMessage());
+            } catch (BookNotAvailableException | BookNotBorrowedException e) {
+                sendError(exchange, 409, e.getMessage());
+            } catch (RateLimitExceededException e) {
+                sendError(exchange, 429, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (Exception e) {
+                sendError(exchange, 500, "Internal error: " + e.getMessage());
+            } finally {
+                exchange.close();
+                histogram.record(System.nanoTime() - start);
+            }
+        });
+    }
+
+    // ---- books ----
+
+    private void listBooks(Map<String, String> params, HttpExchange exchange) throws Exception {
+        admit(params, exchange, AdmissionControl.Operation.LIST);
+        streamBooks(exchange, library.getAllBooks());
+    }
+
+    private void searchBooks(Map<String, String> params, HttpExchange exchange) throws Exception {
+        String title = required(params, "title");
+        admit(params, exchange, AdmissionControl.Operation.SEARCH);
+        List<Book> found = library.findBooksByTitle(title);
+        StringBuilder json = new StringBuilder("{\"results\":");
+        appendBooks(json, found);
+        if (found.isEmpty()) {
+            json.append(",\"suggestions\":");
+            appendBooks(json, library.suggestBooks(title, 5));
+        }
+        sendJson(exchange, 200, json.append('}').toString());
+    }
+
+    private void filterBooks(Map<String, String> params, HttpExchange exchange) throws Exception {
+        BookQuery query = new BookQuery();
+        if (params.containsKey("author")) {
+            query.author(params.get("author"));
+        }
+        if (params.containsKey("minPrice") || params.containsKey("maxPrice")) {
+            query.priceBetween(parseDouble(params.getOrDefault("minPrice", "0"), "minPrice"),
+                parseDouble(params.getOrDefault("maxPrice", String.valueOf(Double.MAX_VALUE)), "maxPrice"));
+        }
+        if (params.containsKey("free")) {
+            if (Boolean.parseBoolean(params.get("free"))) {
+                query.freeOnly();
+            } else {
+                query.paidOnly();
+            }
+        }
+        if (params.containsKey("available")) {
+            if (Boolean.parseBoolean(params.get("available"))) {
+                query.availableOnly();
+            } else {
+                query.borrowedOnly();
+            }
+        }
+        admit(params, exchange, AdmissionControl.Operation.LIST);
+        streamBooks(exchange, library.findBooks(query));
+    }
+
+    // ---- users ----
+
+    private void registerUser(Map<String, String> params, HttpExchange exchange) throws Exception {
+        library.getAdmissionControl().acquire(remoteAddress(exchange), AdmissionControl.Operation.LOGIN);
+        String username = required(params, "username").trim();
+        String password = required(params, "password");
+        String name = required(params, "name").trim();
+        if (!library.createAccount(username, password, name)) {
+            throw new ApiException(409, "Username already exists");
+        }
+        sendJson(exchange, 201, userJson(DatabaseManager.findUser(username)));
+    }
+
+    private void login(Map<String, String> params, HttpExchange exchange) throws Exception {
+        library.getAdmissionControl().acquire(remoteAddress(exchange), AdmissionControl.Operation.LOGIN);
+        User user = DatabaseManager.loginUser(required(params, "username").trim(), required(params, "password"));
+        if (user == null) {
+            throw new ApiException(401, "Invalid username or password");
+        }
+        String token = library.openSession(user);
+        sendJson(exchange, 200, "{\"user\":" + userJson(user) + ",\"token\":" + quote(token) + "}");
+    }
+
+    private void borrowedBooks(Map<String, String> params, HttpExchange exchange) throws Exception {
+        User user = loggedInUser(params, exchange);
+        StringBuilder json = new StringBuilder();
+        appendBooks(json, library.getBorrowedBooks(user));
+        sendJson(exchange, 200, json.toString());
+    }
+
+    // ---- rentals and donations ----
+
+    private void rentBook(Map<String, String> params, HttpExchange exchange) throws Exception {
+        User user = loggedInUser(params, exchange);
+        String isbn = required(params, "isbn");
+        int days = parseInt(required(params, "days"), "days");
+        if (days <= 0) {
+            throw new ApiException(400, "Days must be positive");
+        }
+        library.rentBook(isbn, user.getId(), days);
+        sendJson(exchange, 200, "{\"rented\":" + quote(isbn) + ",\"days\":" + days + "}");
+    }
+
+    private void returnBook(Map<String, String> params, HttpExchange exchange) throws Exception {
+        User user = loggedInUser(params, exchange);
+        String isbn = required(params, "isbn");
+        double lateFee = library.returnBook(isbn, user.getId());
+        sendJson(exchange, 200, "{\"returned\":" + quote(isbn) + ",\"lateFee\":" + lateFee + "}");
+    }
+
+    private void donateBook(Map<String, String> params, HttpExchange exchange) throws Exception {
+        User user = loggedInUser(params, exchange);
+        String isbn = required(params, "isbn").trim();
+        String title = required(params, "title").trim();
+        String author = required(params, "author").trim();
+        double price = parseDouble(required(params, "price"), "price");
+        if (price < 0) {
+            throw new ApiException(400, "Price cannot be negative");
+        }
+
+        Integer months = params.containsKey("months") ? parseInt(params.get("months"), "months") : null;
+        if (months != null && months < 1) {
+            throw new ApiException(400, "Loan period must be at least 1 month");
+        }
+
+        boolean accepted;
+        if (months != null) {
+            accepted = library.acceptTemporaryLoan(user, isbn, title, author, price, months);
+        } else {
+            accepted = library.acceptPermanentDonation(user, isbn, title, author, price);
+        }
+        if (!accepted) {
+            throw new ApiException(409, "ISBN " + isbn + " already exists");
+        }
+        sendJson(exchange, 201, "{\"donated\":" + quote(isbn) + "}");
+    }
+
+    // ---- metrics ----
+
+    private void metrics(Map<String, String> params, HttpExchange exchange) throws Exception {
+        sendJson(exchange, 200, metricsJson());
+    }
+
+    public String metricsJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(quote(entry.getKey())).append(":{\"count\":").append(histogram.getCount())
+                .append(",\"p50Ms\":").append(histogram.percentile(0.50) / 1e6)
+                .append(",\"p99Ms\":").append(histogram.percentile(0.99) / 1e6)
+                .append(",\"maxMs\":").append(histogram.getMax() / 1e6).append('}');
+        }
+        if (json.length() > 1) {
+            json.append(',');
+        }
+        json.append("\"admission\":").append(library.getAdmissionControl().metricsJson());
+        return json.append('}').toString();
+    }
+
+    // ---- request helpers ----
+
+    private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        // Always drain the body so the connection can be reused
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (body.length > 0 && contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            parseForm(new String(body, StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) throws ApiException {
+        String value = params.get(name);
+        if (value == null || value.isBlank()) {
+            throw new ApiException(400, "Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static int parseInt(String value, String name) throws ApiException {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ApiException(400, name + " must be a whole number");
+        }
+    }
+
+    private static double parseDouble(String value, String name) throws ApiException {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ApiException(400, name + " must be a number");
+        }
+    }
+
+    // The session token from the Authorization header or the token parameter, or null
+    private static String sessionToken(Map<String, String> params, HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header != null && header.startsWith("Bearer ")) {
+            return header.substring("Bearer ".length()).trim();
+        }
+        return params.get("token");
+    }
+
+    private static InetAddress remoteAddress(HttpExchange exchange) {
+        return exchange.getRemoteAddress().getAddress();
+    }
+
+    private User loggedInUser(Map<String, String> params, HttpExchange exchange) throws ApiException {
+        String token = sessionToken(params, exchange);
+        User user = token == null ? null : library.getSessionByToken(token);
+        if (user == null) {
+            throw new ApiException(401, "Log in through /users/login first");
+        }
+        return user;
+    }
+
+    // Rate limits a request by its session if it has a valid one, otherwise by remote address
+    private void admit(Map<String, String> params, HttpExchange exchange, AdmissionControl.Operation operation)
+            throws RateLimitExceededException {
+        String token = sessionToken(params, exchange);
+        User user = token == null ? null : library.getSessionByToken(token);
+        if (user != null) {
+            library.getAdmissionControl().acquire(user.getId(), operation);
+        } else {
+            library.getAdmissionControl().acquire(remoteAddress(exchange), operation);
+        }
+    }
+
+    // ---- response helpers ----
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        // Too late for a status once a streamed response has started
+        if (exchange.getResponseCode() != -1) {
+            return;
+        }
+        try {
+            sendJson(exchange, status, "{\"error\":" + quote(message) + "}");
+        } catch (IOException e) {
+            // Client went away; nothing left to tell it
+        }
+    }
+
+    // Chunked transfer: each buffer-full of JSON goes out as soon as it is written
+    private static void streamBooks(HttpExchange exchange, List<Book> books) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), STREAM_BUFFER_BYTES)) {
+            StringBuilder json = new StringBuilder(256);
+            out.write('[');
+            for (int i = 0; i < books.size(); i++) {
+                json.setLength(0);
+                if (i > 0) {
+                    json.append(',');
+                }
+                appendBook(json, books.get(i));
+                out.append(json);
+            }
+            out.write(']');
+        }
+    }
+
+    private static void appendBooks(StringBuilder json, List<Book> books) {
+        json.append('[');
+        for (int i = 0; i < books.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendBook(json, books.get(i));
+        }
+        json.append(']');
+    }
+
+    private static void appendBook(StringBuilder json, Book book) {
+        json.append("{\"isbn\":").append(quote(book.getIsbn()))
+            .append(",\"title\":").append(quote(book.getTitle()))
+            .append(",\"author\":").append(quote(book.getAuthor()))
+            .append(",\"pricePerDay\":").append(book.getRentalPricePerDay())
+            .append(",\"available\":").append(book.isAvailable());
+        if (book.getDueDate() != null) {
+            json.append(",\"dueDate\":").append(quote(book.getDueDate().toString()));
+        }
+        if (book.isTemporaryLoan()) {
+            json.append(",\"lendUntil\":").append(quote(book.getLendUntilDate().toString()));
+        }
+        json.append('}');
+    }
+
+    private static String userJson(User user) {
+        return "{\"id\":" + user.getId() + ",\"username\":" + quote(user.getUsername())
+            + ",\"name\":" + quote(user.getName()) + "}";
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
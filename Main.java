@@ -1,19 +1,67 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.Scanner;
 
 public class Main {
+    // Before the library field, so the catalog load counts towards startup time
+    private static final long startedAt = System.currentTimeMillis();
     private static final Library library = new Library();
     private static final Scanner scanner = new Scanner(System.in);
     private static User currentUser = null;
 
     public static void main(String[] args) {
         DatabaseManager.initializeDatabase();
-        initializeLibrary(); // Run once to add default books, then comment out again
+        long seedStart = System.currentTimeMillis();
+        // Default books for a brand-new library; an existing catalog is left as it is, even
+        // once every book has been adopted
+        if (library.isBrandNew()) {
+            initializeLibrary();
+        }
+        long seedMillis = System.currentTimeMillis() - seedStart;
+        printStartupTimes(seedMillis);
+        
+        // java Main --batch <file|-> [--quiet] [--batch-size N]
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(args);
+            shutdown();
+            return;
+        }
+        
+        // java Main --serve [port]
+        if (args.length > 0 && args[0].equals("--serve")) {
+            runServer(args);
+            return;
+        }
         
         if (loginOrSignup()) {
             runMenu();
         }
         
+        shutdown();
+    }
+
+    // Where launch time went (JVM boot itself not included); the search indexes are still
+    // being built in the background at this point
+    private static void printStartupTimes(long seedMillis) {
+        long sinceLaunch = System.currentTimeMillis() - startedAt;
+        System.out.println("Startup: catalog " + library.getLoadMillis() + " ms, users " + DatabaseManager.getLoadMillis()
+            + " ms, seeding " + seedMillis + " ms" + (StartupImage.get() != null ? " (from startup image)" : "")
+            + "; ready in " + sinceLaunch + " ms.");
+    }
+
+    // Saves everything before exit; with -Dlibrary.fastStart=true also refreshes the
+    // startup image for the next launch
+    private static void shutdown() {
+        library.flush();
         DatabaseManager.closeConnection();
+        if (StartupImage.isEnabled() && !StartupImage.isCurrent()) {
+            try {
+                StartupImage.write(library.getAllBooks(), DatabaseManager.snapshotUsers());
+            } catch (IOException e) {
+                System.out.println("Could not write startup image: " + e.getMessage());
+            }
+        }
     }
 
     private static void initializeLibrary() {
@@ -23,6 +71,59 @@ public class Main {
         library.addBook(new Book("4", "1984", "George Orwell", 0.0));
     }
     
+    private static void runBatch(String[] args) {
+        String source = "-";
+        boolean quiet = false;
+        int batchSize = 1000;
+        
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--quiet" -> quiet = true;
+                    case "--batch-size" -> batchSize = Integer.parseInt(args[++i]);
+                    default -> source = args[i];
+                }
+            }
+            if (batchSize <= 0) {
+                System.out.println("Error: Batch size must be positive.");
+                return;
+            }
+            library.setAdmissionControl(AdmissionControl.unlimited());
+            new BatchRunner(library, batchSize, quiet).run(source);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Error: --batch-size needs a positive number.");
+        } catch (IOException e) {
+            System.out.println("Error reading batch input: " + e.getMessage());
+        }
+    }
+    
+    // Runs until the process is stopped; the shutdown hook saves everything
+    private static void runServer(String[] args) {
+        int port = 8080;
+        try {
+            if (args.length > 1) {
+                port = Integer.parseInt(args[1]);
+            }
+            LibraryServer server = new LibraryServer(library, port);
+            PrintStream console = System.out;
+            // Per-request messages from Library would flood the console
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                console.println("Request latency: " + server.metricsJson());
+                shutdown();
+            }));
+            server.start();
+            console.println("Library API listening on port " + server.getPort());
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Port must be a number.");
+            shutdown();
+        } catch (IOException e) {
+            System.out.println("Error starting server: " + e.getMessage());
+            shutdown();
+        }
+    }
+    
     private static boolean loginOrSignup() {
         while (true) {
             System.out.println("\n===== Welcome to Library Management System =====");
@@ -74,7 +175,8 @@ public class Main {
         
         if (currentUser != null) {
             System.out.println("\nWelcome back, " + currentUser.getName() + "!");
-            library.registerUser(currentUser); // Add to library session
+            // Same User instance as the last login, so borrowed books are still there
+            currentUser = library.registerUser(currentUser);
             return true;
         } else {
             System.out.println("Invalid username or password!");
@@ -112,7 +214,7 @@ public class Main {
             return false;
         }
         
-        if (DatabaseManager.registerUser(username, password, name)) {
+        if (library.createAccount(username, password, name)) {
             System.out.println("\nAccount created successfully! Please login.");
             return false; // Make them login after signup
         } else {
@@ -126,6 +228,7 @@ public class Main {
             boolean running = true;
             
             while (running) {
+                LibraryClock.tick();
                 library.processExpiredLoans();
                 
                 printMenu();
@@ -134,7 +237,7 @@ public class Main {
                     int userChoice = Integer.parseInt(scanner.nextLine());
                     
                     switch (userChoice) {
-                        case 1 -> library.showAllBooks();
+                        case 1 -> library.showAllBooks(currentUser.getId());
                         case 2 -> searchBook();
                         case 3 -> adoptBook();
                         case 4 -> rentBook();
@@ -150,6 +253,7 @@ public class Main {
                                 running = false;
                             }
                         }
+                        case 11 -> filterBooks();
                         case 0 -> {
                             System.out.println("Goodbye!");
                             running = false;
@@ -185,7 +289,9 @@ public class Main {
         System.out.println("\n  Account:");
         System.out.println("  9. Delete my account");
         System.out.println("  10. Logout");
-        System.out.println("  0. Exit");
+        System.out.println("\n More Books:");
+        System.out.println("  11. Filter books (author, price, availability)");
+        System.out.println("\n  0. Exit");
         System.out.print("\nChoose an option: ");
     }
 
@@ -198,7 +304,58 @@ public class Main {
             return;
         }
         
-        library.searchBookByTitle(title);
+        try {
+            library.searchBookByTitle(title, currentUser.getId());
+        } catch (RateLimitExceededException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private static void filterBooks() {
+        BookQuery query = new BookQuery();
+        
+        System.out.print("Author's full name (leave blank for any): ");
+        String author = scanner.nextLine().trim();
+        if (!author.isEmpty()) {
+            query.author(author);
+        }
+        
+        System.out.print("Price per day range, e.g. 1-5 (leave blank for any): ");
+        String range = scanner.nextLine().trim();
+        if (!range.isEmpty()) {
+            String[] bounds = range.split("-");
+            try {
+                if (bounds.length != 2) {
+                    throw new NumberFormatException();
+                }
+                query.priceBetween(Double.parseDouble(bounds[0].trim()), Double.parseDouble(bounds[1].trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Enter the range as two numbers, like 1-5.");
+                return;
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error: " + e.getMessage());
+                return;
+            }
+        }
+        
+        System.out.print("Free or paid (f/p, leave blank for both): ");
+        String type = scanner.nextLine().trim().toLowerCase();
+        if (type.equals("f")) {
+            query.freeOnly();
+        } else if (type.equals("p")) {
+            query.paidOnly();
+        }
+        
+        System.out.print("Only available books? (y/n): ");
+        if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+            query.availableOnly();
+        }
+        
+        try {
+            library.filterBooks(query, currentUser.getId());
+        } catch (RateLimitExceededException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
     }
 
     private static void adoptBook() {
@@ -212,7 +369,7 @@ public class Main {
             }
 
             library.adoptBook(isbn, currentUser.getId());
-        } catch (BookNotFoundException | UserNotFoundException | BookNotAvailableException e) {
+        } catch (BookNotFoundException | UserNotFoundException | BookNotAvailableException | RateLimitExceededException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
@@ -245,7 +402,7 @@ public class Main {
             library.rentBook(isbn, currentUser.getId(), days);
         } catch (NumberFormatException e) {
             System.out.println("Error: Please enter a valid number for days.");
-        } catch (BookNotFoundException | UserNotFoundException | BookNotAvailableException e) {
+        } catch (BookNotFoundException | UserNotFoundException | BookNotAvailableException | RateLimitExceededException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
@@ -261,7 +418,7 @@ public class Main {
             }
 
             library.returnBook(isbn, currentUser.getId());
-        } catch (BookNotFoundException | UserNotFoundException e) {
+        } catch (BookNotFoundException | UserNotFoundException | BookNotBorrowedException | RateLimitExceededException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
@@ -275,6 +432,7 @@ public class Main {
             System.out.println("\nAccount deleted successfully. Goodbye!");
             library.removeUser(currentUser);
             currentUser = null;
+            shutdown();
             System.exit(0);
         } else {
             System.out.println("Failed to delete account. Incorrect password or error occurred.");
@@ -328,6 +486,8 @@ public class Main {
             library.acceptPermanentDonation(currentUser, isbn, title, author, price);
         } catch (NumberFormatException e) {
             System.out.println("Error: Please enter a valid price.");
+        } catch (RateLimitExceededException e) {
+            System.out.println("Error: " + e.getMessage());
         }
     }
     
@@ -392,6 +552,8 @@ public class Main {
             library.acceptTemporaryLoan(currentUser, isbn, title, author, price, months);
         } catch (NumberFormatException e) {
             System.out.println("Error: Please enter valid numbers for price and months.");
+        } catch (RateLimitExceededException e) {
+            System.out.println("Error: " + e.getMessage());
         }
     }
 }
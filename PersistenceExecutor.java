@@ -0,0 +1,222 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+// Background writer for books.dat / users.dat.
+// Save requests for the same file are coalesced, so a burst of mutations costs one write.
+public class PersistenceExecutor {
+    public enum Durability {
+        GROUP,     // fsync every group before completing its futures
+        PERIODIC,  // complete after the write, fsync at most every syncIntervalMillis
+        ASYNC      // complete immediately, let the OS decide when data hits the disk
+    }
+
+    private static PersistenceExecutor instance;
+
+    private final Durability durability;
+    private final long syncIntervalMillis;
+    private final Map<String, PendingWrite> pending = new LinkedHashMap<>();
+    // Guarded by this, like pending; the worker copies it out before syncing
+    private final List<String> unsyncedFiles = new ArrayList<>();
+    private final Thread worker;
+    private long lastSyncMillis = System.currentTimeMillis();
+    private boolean closed = false;
+    // True while the worker writes a group it has already taken out of pending
+    private boolean writing = false;
+
+    private static class PendingWrite {
+        Supplier<byte[]> snapshot;
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+    }
+
+    public PersistenceExecutor(Durability durability, long syncIntervalMillis) {
+        this.durability = durability;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.worker = new Thread(this::run, "library-persistence");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    // Shared executor, configured with -Dlibrary.durability=GROUP|PERIODIC|ASYNC
+    // and -Dlibrary.syncIntervalMs=<millis> (used by PERIODIC).
+    public static synchronized PersistenceExecutor getInstance() {
+        if (instance == null) {
+            Durability durability = Durability.valueOf(
+                System.getProperty("library.durability", "GROUP").toUpperCase());
+            long interval = Long.getLong("library.syncIntervalMs", 1000L);
+            instance = new PersistenceExecutor(durability, interval);
+        }
+        return instance;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    // The snapshot is taken on the persistence thread when the group is written,
+    // so it always reflects the latest state of the file's owner.
+    public CompletableFuture<Void> submit(String fileName, Supplier<byte[]> snapshot) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Persistence executor is closed"));
+                return future;
+            }
+            PendingWrite write = pending.computeIfAbsent(fileName, k -> new PendingWrite());
+            write.snapshot = snapshot;
+            if (durability != Durability.ASYNC) {
+                write.waiters.add(future);
+            }
+            notifyAll();
+        }
+        if (durability == Durability.ASYNC) {
+            future.complete(null);
+        }
+        return future;
+    }
+
+    // Blocks until everything submitted so far is written (and synced, if the mode syncs).
+    public void flush() {
+        CompletableFuture<Void> marker = new CompletableFuture<>();
+        synchronized (this) {
+            if (pending.isEmpty() && !writing && unsyncedFiles.isEmpty()) {
+                return;
+            }
+            pending.computeIfAbsent("", k -> new PendingWrite()).waiters.add(marker);
+            notifyAll();
+        }
+        marker.join();
+    }
+
+    public void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Map<String, PendingWrite> group;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed && !periodicSyncDue()) {
+                    try {
+                        if (durability == Durability.PERIODIC && !unsyncedFiles.isEmpty()) {
+                            wait(Math.max(1, syncIntervalMillis - (System.currentTimeMillis() - lastSyncMillis)));
+                        } else {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty() && closed) {
+                    return;
+                }
+                group = new LinkedHashMap<>(pending);
+                pending.clear();
+                writing = true;
+            }
+            try {
+                writeGroup(group);
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // Call with this held
+    private boolean periodicSyncDue() {
+        return durability == Durability.PERIODIC && !unsyncedFiles.isEmpty()
+            && System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis;
+    }
+
+    private void writeGroup(Map<String, PendingWrite> group) {
+        for (Map.Entry<String, PendingWrite> entry : group.entrySet()) {
+            String fileName = entry.getKey();
+            PendingWrite write = entry.getValue();
+            if (fileName.isEmpty()) {
+                continue; // flush marker
+            }
+            try {
+                SafeFileStore.write(fileName, write.snapshot.get(), durability == Durability.GROUP);
+                if (durability == Durability.PERIODIC) {
+                    synchronized (this) {
+                        if (!unsyncedFiles.contains(fileName)) {
+                            unsyncedFiles.add(fileName);
+                        }
+                    }
+                }
+                for (CompletableFuture<Void> waiter : write.waiters) {
+                    waiter.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error saving " + fileName + ": " + e.getMessage());
+                for (CompletableFuture<Void> waiter : write.waiters) {
+                    waiter.completeExceptionally(e);
+                }
+            }
+        }
+
+        boolean flushRequested = group.containsKey("");
+        boolean syncDue;
+        synchronized (this) {
+            syncDue = periodicSyncDue();
+        }
+        if (durability == Durability.PERIODIC && (flushRequested || syncDue)) {
+            syncFiles();
+        }
+        if (flushRequested) {
+            for (CompletableFuture<Void> waiter : group.get("").waiters) {
+                waiter.complete(null);
+            }
+        }
+    }
+
+    private void syncFiles() {
+        List<String> files;
+        synchronized (this) {
+            files = new ArrayList<>(unsyncedFiles);
+            unsyncedFiles.clear();
+        }
+        for (String fileName : files) {
+            try {
+                SafeFileStore.sync(fileName);
+            } catch (IOException e) {
+                System.out.println("Error syncing " + fileName + ": " + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            lastSyncMillis = System.currentTimeMillis();
+        }
+    }
+
+    public static byte[] serialize(Object object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(object);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return ois.readObject();
+        }
+    }
+}
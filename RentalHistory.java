@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Append-only history of rentals, returns, adoptions and expired loans, for ColumnarExport.
+// Enabled with -Dlibrary.rentalHistory=<directory>.
+//
+// The change log cannot serve as history: it is rewritten whenever the library restarts or
+// compacts it. These files are only ever appended to. Records go to history-00001.log,
+// history-00002.log, ... in the change log's record format (see ChangeStream), and a new
+// segment starts once the current one passes -Dlibrary.rentalHistorySegmentBytes (default
+// 64 MB). Sequence numbers carry on across restarts. A background thread fsyncs new records
+// once a second, and Library.flush syncs them at once. A record torn by a crash is cut off when
+// the library next starts. Segments an export has moved past can be archived or deleted.
+//
+// Records are written from library events on the event dispatcher thread.
+public class RentalHistory implements Closeable, LibraryEvents.Subscriber {
+    private static final Pattern SEGMENT_FILE = Pattern.compile("history-(\\d+)\\.log");
+    private static final long SEGMENT_BYTES = Long.getLong("library.rentalHistorySegmentBytes", 64L * 1024 * 1024);
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private final File dir;
+    private FileOutputStream out;
+    private int segment;
+    private long segmentBytes;
+    private long sequence;
+    private boolean unsynced;
+    private boolean closed;
+
+    public RentalHistory(String directory) throws IOException {
+        this.dir = new File(directory);
+        Files.createDirectories(dir.toPath());
+        open();
+        Thread syncer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(SYNC_INTERVAL_MILLIS);
+                    if (!sync()) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    System.out.println("Error syncing rental history: " + e.getMessage());
+                }
+            }
+        }, "rental-history-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    private void open() throws IOException {
+        List<Integer> segments = segments(dir);
+        if (segments.isEmpty()) {
+            openSegment(1);
+            return;
+        }
+        // Carry on in the newest segment; an older one holds the last sequence if it is empty
+        for (int i = segments.size() - 1; i >= 0 && sequence == 0; i--) {
+            long[] end = scan(segmentFile(dir, segments.get(i)));
+            sequence = end[1];
+            if (i == segments.size() - 1) {
+                segmentBytes = end[0];
+            }
+        }
+        segment = segments.get(segments.size() - 1);
+        File last = segmentFile(dir, segment);
+        if (last.length() > segmentBytes) {
+            System.out.println("Rental history: cutting a torn record off the end of " + last);
+            try (FileChannel channel = FileChannel.open(last.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(segmentBytes);
+            }
+        }
+        out = new FileOutputStream(last, true);
+    }
+
+    // Segment numbers present in dir, oldest first
+    static List<Integer> segments(File dir) {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher matcher = SEGMENT_FILE.matcher(name);
+                if (matcher.matches()) {
+                    segments.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    static File segmentFile(File dir, int segment) {
+        return new File(dir, String.format("history-%05d.log", segment));
+    }
+
+    // Length of the complete records at the start of the file, and the last one's sequence
+    private static long[] scan(File file) throws IOException {
+        long length = file.length();
+        long position = 0;
+        long lastSequence = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (length - position >= 4) {
+                int recordLength = in.readInt();
+                if (recordLength < 0 || length - position - 4 < recordLength) {
+                    break;
+                }
+                try {
+                    lastSequence = ChangeStream.decode(in.readNBytes(recordLength)).sequence;
+                } catch (IOException | RuntimeException e) {
+                    break;
+                }
+                position += 4 + recordLength;
+            }
+        }
+        return new long[] {position, lastSequence};
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void onEvent(LibraryEvents.Event event) {
+        ChangeStream.Type type = ChangeStream.typeOf(event.getType());
+        if (type != null && type != ChangeStream.Type.ADD) {
+            append(type, event);
+        }
+    }
+
+    private synchronized void append(ChangeStream.Type type, LibraryEvents.Event event) {
+        try {
+            if (segmentBytes >= SEGMENT_BYTES) {
+                sync();
+                out.close();
+                openSegment(segment + 1);
+            }
+            byte[] record = ChangeStream.encode(sequence + 1, type, event.getBook(), event.getUserId(), event.getAmount(),
+                event.getBorrowedAt(), event.getDueDate(), event.getTimestampMillis());
+            out.write(record);
+            sequence++;
+            segmentBytes += record.length;
+            unsynced = true;
+        } catch (IOException e) {
+            System.out.println("Error writing rental history: " + e.getMessage());
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        segment = number;
+        segmentBytes = 0;
+        out = new FileOutputStream(segmentFile(dir, number), true);
+    }
+
+    // Forces everything written so far to disk; returns false once closed
+    public synchronized boolean sync() throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (unsynced) {
+            out.getChannel().force(false);
+            unsynced = false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        closed = true;
+        out.close();
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Running totals of rentals, kept up to date from library events: books currently out and
+// who has them, rental revenue and late fees. Only the event dispatcher writes to it.
+public class RentalLedger implements LibraryEvents.Subscriber {
+    private final Map<String, Integer> activeRentals = new HashMap<>();
+    private long rentals;
+    private long returns;
+    private long lateReturns;
+    private double rentalRevenue;
+    private double lateFees;
+
+    @Override
+    public synchronized void onEvent(LibraryEvents.Event event) {
+        String key = event.getIsbn() == null ? null : ShardedCatalog.normalizeIsbn(event.getIsbn());
+        switch (event.getType()) {
+            case BOOK_RENTED -> {
+                activeRentals.put(key, event.getUserId());
+                rentals++;
+                rentalRevenue += event.getAmount();
+            }
+            case BOOK_RETURNED -> {
+                activeRentals.remove(key);
+                returns++;
+                if (event.getAmount() > 0) {
+                    lateReturns++;
+                    lateFees += event.getAmount();
+                }
+            }
+            // The book left the catalog while it may still have been out
+            case BOOK_ADOPTED, LOAN_EXPIRED -> activeRentals.remove(key);
+            default -> {
+                // not a rental event
+            }
+        }
+    }
+
+    public synchronized int getActiveRentals() {
+        return activeRentals.size();
+    }
+
+    public synchronized double getLateFees() {
+        return lateFees;
+    }
+
+    public synchronized String report() {
+        return String.format("Rentals: %d (%d out now), returns: %d (%d late), rental revenue $%.2f, late fees $%.2f",
+            rentals, activeRentals.size(), returns, lateReturns, rentalRevenue, lateFees);
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+// Crash-safe storage for the .dat files.
+// Every save goes to a temp file that is fsynced and renamed over the live file,
+// and the previous generation is kept as <file>.prev so a torn write can fall back to it.
+//
+// File layout: magic, generation, payload length, segment size, header CRC,
+// then one (CRC32C, bytes) pair per segment of the payload.
+public class SafeFileStore {
+    private static final int MAGIC = 0x4C42534B; // "LBSK"
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+    private static final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+    // Turns a payload back into what was saved
+    public interface Decoder<T> {
+        T decode(byte[] payload) throws IOException, ClassNotFoundException;
+    }
+
+    private SafeFileStore() {
+    }
+
+    // Returns the payload of the newest valid generation, or null when the file was never saved.
+    public static byte[] read(String fileName) throws IOException {
+        return read(fileName, payload -> payload);
+    }
+
+    // Like read(fileName), but a generation that passes its checksums and still fails to decode
+    // counts as damaged too, so the previous generation is tried.
+    public static <T> T read(String fileName, Decoder<T> decoder) throws IOException {
+        return read(fileName, decoder, true);
+    }
+
+    // Like read(fileName, decoder), but never moves a damaged file aside, for tools that read
+    // files a running library owns
+    public static <T> T readSnapshot(String fileName, Decoder<T> decoder) throws IOException {
+        return read(fileName, decoder, false);
+    }
+
+    private static <T> T read(String fileName, Decoder<T> decoder, boolean quarantine) throws IOException {
+        Path current = Paths.get(fileName);
+        Path previous = Paths.get(fileName + ".prev");
+        if (!Files.exists(current) && !Files.exists(previous)) {
+            return null;
+        }
+
+        String currentError = "missing";
+        if (Files.exists(current)) {
+            try {
+                return decode(decoder, readGeneration(fileName, current));
+            } catch (IOException e) {
+                currentError = e.getMessage();
+            }
+        }
+
+        if (Files.exists(previous)) {
+            try {
+                T payload = decode(decoder, readGeneration(fileName, previous));
+                if (quarantine && Files.exists(current)) {
+                    // Move it aside so the next save does not rotate it over the good backup
+                    Files.move(current, Paths.get(fileName + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+                }
+                System.out.println("Warning: " + fileName + " is damaged (" + currentError + "), recovered generation "
+                    + generations.get(fileName) + " from backup.");
+                return payload;
+            } catch (IOException e) {
+                // fall through to quarantine
+            }
+        }
+
+        // Keep the damaged file for inspection instead of letting the next save overwrite it
+        if (quarantine && Files.exists(current)) {
+            Files.move(current, Paths.get(fileName + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        throw new IOException(fileName + " has no valid generation (" + currentError + ")");
+    }
+
+    public static void write(String fileName, byte[] payload, boolean sync) throws IOException {
+        long generation = generations.getOrDefault(fileName, 0L) + 1;
+        Path current = Paths.get(fileName);
+        Path temp = Paths.get(fileName + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putLong(generation).putLong(payload.length).putInt(SEGMENT_SIZE);
+            header.putInt(crc(header.array(), 0, HEADER_SIZE - 4));
+            header.flip();
+            writeFully(channel, header);
+
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            for (int offset = 0; offset < payload.length; offset += SEGMENT_SIZE) {
+                int length = Math.min(SEGMENT_SIZE, payload.length - offset);
+                checksum.clear();
+                checksum.putInt(crc(payload, offset, length)).flip();
+                writeFully(channel, checksum);
+                writeFully(channel, ByteBuffer.wrap(payload, offset, length));
+            }
+            if (sync) {
+                channel.force(true);
+            }
+        }
+
+        if (Files.exists(current)) {
+            Files.move(current, Paths.get(fileName + ".prev"),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(temp, current, StandardCopyOption.ATOMIC_MOVE);
+        if (sync) {
+            syncDirectory(current);
+        }
+        generations.put(fileName, generation);
+    }
+
+    // Forces a file written without sync (and its rename) to disk
+    public static void sync(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        syncDirectory(path);
+    }
+
+    public static long getGeneration(String fileName) {
+        return generations.getOrDefault(fileName, 0L);
+    }
+
+    private static <T> T decode(Decoder<T> decoder, byte[] payload) throws IOException {
+        try {
+            return decoder.decode(payload);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            throw new IOException("cannot decode: " + e, e);
+        }
+    }
+
+    private static byte[] readGeneration(String fileName, Path path) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+
+        // Files written before checksums were added are plain serialized objects
+        if (data.length >= 2 && (data[0] & 0xFF) == 0xAC && (data[1] & 0xFF) == 0xED) {
+            generations.putIfAbsent(fileName, 0L);
+            return data;
+        }
+
+        if (data.length < HEADER_SIZE) {
+            throw new IOException("truncated header");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("unknown file format");
+        }
+        long generation = buffer.getLong();
+        long payloadLength = buffer.getLong();
+        int segmentSize = buffer.getInt();
+        if (buffer.getInt() != crc(data, 0, HEADER_SIZE - 4)) {
+            throw new IOException("header checksum mismatch");
+        }
+        if (payloadLength < 0 || payloadLength > Integer.MAX_VALUE || segmentSize <= 0) {
+            throw new IOException("invalid header");
+        }
+
+        byte[] payload = new byte[(int) payloadLength];
+        for (int offset = 0; offset < payload.length; offset += segmentSize) {
+            int length = Math.min(segmentSize, payload.length - offset);
+            if (buffer.remaining() < 4 + length) {
+                throw new IOException("truncated at byte " + offset);
+            }
+            int expected = buffer.getInt();
+            buffer.get(payload, offset, length);
+            if (crc(payload, offset, length) != expected) {
+                throw new IOException("checksum mismatch at byte " + offset);
+            }
+        }
+
+        generations.put(fileName, generation);
+        return payload;
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void syncDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory for syncing; the rename is still atomic
+        }
+    }
+}
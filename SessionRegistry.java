@@ -0,0 +1,134 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Users with a live session, one canonical User instance per user id.
+//
+// Library looks the user up here on every rent, return and adopt, so this is a concurrent
+// map keyed by id rather than a list to scan. Logging in again hands back the existing User,
+// so borrowed books carry over between logins and API requests. Sessions idle longer than
+// the timeout (-Dlibrary.sessionIdleMinutes, default 30) are evicted. The borrowed list lives
+// only on the User, so an evicted User is kept aside and becomes the next session's User again;
+// a rental still in flight at eviction lands on that same list. Parked users with nothing out
+// are dropped on the next sweep, so the map holds about one entry per user with books out.
+//
+// Every session also has a random token. API clients get it at login and present it instead
+// of a user id, which anyone could guess.
+public class SessionRegistry {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static class Session {
+        final User user;
+        final String token;
+        volatile long lastAccessNanos;
+
+        Session(User user) {
+            this.user = user;
+            byte[] bytes = new byte[24];
+            RANDOM.nextBytes(bytes);
+            this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            this.lastAccessNanos = System.nanoTime();
+        }
+    }
+
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Session> byToken = new ConcurrentHashMap<>();
+    private final Map<Integer, User> parkedUsers = new ConcurrentHashMap<>();
+    private final long idleTimeoutNanos;
+
+    public SessionRegistry(long idleTimeoutMillis) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    public static SessionRegistry fromSystemProperties() {
+        return new SessionRegistry(TimeUnit.MINUTES.toMillis(Long.getLong("library.sessionIdleMinutes", 30L)));
+    }
+
+    // The canonical User for this id: the existing session's, or the given one if there was none
+    public User login(User user) {
+        return open(user).user;
+    }
+
+    // Like login, but returns the session's token
+    public String loginForToken(User user) {
+        return open(user).token;
+    }
+
+    private Session open(User user) {
+        Session session = sessions.compute(user.getId(), (id, existing) -> {
+            if (existing != null && existing.user.getUsername().equals(user.getUsername())) {
+                return existing;
+            }
+            // A session or parked books under this id from a deleted account are not this user's
+            if (existing != null) {
+                byToken.remove(existing.token);
+            }
+            User parked = parkedUsers.remove(id);
+            if (parked != null && !parked.getUsername().equals(user.getUsername())) {
+                parked = null;
+            }
+            Session created = new Session(parked != null ? parked : user);
+            byToken.put(created.token, created);
+            return created;
+        });
+        session.lastAccessNanos = System.nanoTime();
+        return session;
+    }
+
+    // null if the user has no session (never logged in, logged out or evicted)
+    public User get(int userId) {
+        Session session = sessions.get(userId);
+        if (session == null) {
+            return null;
+        }
+        session.lastAccessNanos = System.nanoTime();
+        return session.user;
+    }
+
+    // The user whose session has this token, or null; an unknown token touches nothing
+    public User getByToken(String token) {
+        Session session = byToken.get(token);
+        if (session == null) {
+            return null;
+        }
+        session.lastAccessNanos = System.nanoTime();
+        return session.user;
+    }
+
+    // Ends the session for good, as when the account is deleted
+    public void remove(int userId) {
+        Session session = sessions.remove(userId);
+        if (session != null) {
+            byToken.remove(session.token);
+        }
+        parkedUsers.remove(userId);
+    }
+
+    // Returns the number of sessions evicted. Safe to run alongside rentals: an evicted User is
+    // parked as it is, so books added to it afterwards are not lost.
+    public int evictIdle() {
+        long now = System.nanoTime();
+        // Parked on an earlier sweep, so any rental that was in flight then has finished
+        parkedUsers.values().removeIf(user -> user.getBooks().isEmpty());
+        int[] evicted = {0};
+        for (Integer userId : sessions.keySet()) {
+            // Atomic with login's compute, so a returning user cannot miss their parked books
+            sessions.computeIfPresent(userId, (id, session) -> {
+                if (now - session.lastAccessNanos <= idleTimeoutNanos) {
+                    return session;
+                }
+                parkedUsers.put(id, session.user);
+                byToken.remove(session.token);
+                evicted[0]++;
+                return null;
+            });
+        }
+        return evicted[0];
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}
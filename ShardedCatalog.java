@@ -0,0 +1,354 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Book catalog split into shards by normalized ISBN hash.
+// Each shard has its own index, lock and books-<n>.dat file, so saves only rewrite dirty shards.
+// The shard lock also guards the state of the books in it: Library rents, returns and adopts
+// while holding writeLockFor(isbn), and saves serialize a shard under its read lock.
+public class ShardedCatalog {
+    private static final String LEGACY_FILE = "books.dat";
+    private static final Pattern SHARD_FILE = Pattern.compile("books-(\\d+)\\.dat(\\.prev)?");
+
+    // Numeric ISBNs sort by value, so 2 comes before 10
+    public static final Comparator<Book> BY_ISBN = Comparator
+        .comparingInt((Book book) -> normalizeIsbn(book.getIsbn()).length())
+        .thenComparing(book -> normalizeIsbn(book.getIsbn()));
+
+    private final Shard[] shards;
+
+    private static class Shard {
+        final String fileName;
+        final Map<String, Book> books = new LinkedHashMap<>();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        boolean dirty;
+
+        Shard(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    public ShardedCatalog(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(shardFileName(i));
+        }
+    }
+
+    public static String normalizeIsbn(String isbn) {
+        // Strip leading zeros so "001" and "1" match; a plain loop, this runs for every book on load
+        int start = 0;
+        while (start < isbn.length() - 1 && isbn.charAt(start) == '0') {
+            start++;
+        }
+        return isbn.substring(start).toLowerCase();
+    }
+
+    private static String shardFileName(int index) {
+        return "books-" + index + ".dat";
+    }
+
+    private Shard shardFor(String normalizedIsbn) {
+        int hash = normalizedIsbn.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public Book get(String isbn) {
+        String key = normalizeIsbn(isbn);
+        Shard shard = shardFor(key);
+        shard.lock.readLock().lock();
+        try {
+            return shard.books.get(key);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String isbn) {
+        return get(isbn) != null;
+    }
+
+    // The write lock of the shard this ISBN belongs to, whether or not the book exists.
+    // Reentrant, so the other catalog methods can be called while holding it; never hold
+    // it while calling saveDirty, which takes every shard's lock in turn.
+    public Lock writeLockFor(String isbn) {
+        return shardFor(normalizeIsbn(isbn)).lock.writeLock();
+    }
+
+    public void add(Book book) {
+        String key = normalizeIsbn(book.getIsbn());
+        Shard shard = shardFor(key);
+        shard.lock.writeLock().lock();
+        try {
+            shard.books.put(key, book);
+            shard.dirty = true;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(Book book) {
+        String key = normalizeIsbn(book.getIsbn());
+        Shard shard = shardFor(key);
+        shard.lock.writeLock().lock();
+        try {
+            boolean removed = shard.books.remove(key, book);
+            shard.dirty |= removed;
+            return removed;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    // Fills the catalog from books already known to match the shard files (the startup
+    // image), so nothing is marked dirty. Only before the catalog is shared: takes no locks.
+    public void loadAll(List<Book> books) {
+        for (Book book : books) {
+            String key = normalizeIsbn(book.getIsbn());
+            shardFor(key).books.put(key, book);
+        }
+    }
+
+    // Call after changing a book's state in place (rent, return)
+    public void markDirty(Book book) {
+        markShardDirty(shardFor(normalizeIsbn(book.getIsbn())));
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                size += shard.books.size();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Copy of every book, in shard order; sort it for display (see BY_ISBN)
+    public List<Book> snapshot() {
+        List<Book> books = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                books.addAll(shard.books.values());
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return books;
+    }
+
+    // True if a catalog was ever saved here, even one that has since become empty
+    public static boolean hasSavedFiles() {
+        File[] files = new File(".").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (SHARD_FILE.matcher(file.getName()).matches() || file.getName().startsWith(LEGACY_FILE)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Loads every shard file in parallel; returns the catalog size
+    public int load() {
+        TreeSet<Integer> fileIndexes = new TreeSet<>();
+        File[] files = new File(".").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SHARD_FILE.matcher(file.getName());
+                if (matcher.matches()) {
+                    fileIndexes.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+
+        AtomicBoolean rehashed = new AtomicBoolean(false);
+        fileIndexes.parallelStream().forEach(index -> {
+            if (!loadFile(shardFileName(index), shards.length > index ? shards[index] : null)) {
+                rehashed.set(true);
+            }
+        });
+
+        boolean migrated = false;
+        if (fileIndexes.isEmpty() && (new File(LEGACY_FILE).exists() || new File(LEGACY_FILE + ".prev").exists())) {
+            loadFile(LEGACY_FILE, null);
+            migrated = true;
+        }
+
+        // Books that no longer hash to the shard whose file they came from (the shard
+        // count changed, or this is the old single-file catalog) are rewritten into
+        // their current shards, and once those saves have succeeded the leftover files
+        // are removed
+        List<Integer> strayIndexes = new ArrayList<>(fileIndexes.tailSet(shards.length));
+        if (!migrated && !rehashed.get()) {
+            for (Shard shard : shards) {
+                shard.dirty = false;
+            }
+        } else {
+            // Written here rather than queued: an ASYNC executor reports success before the
+            // write, and the old files must outlive any failed one
+            try {
+                for (Shard shard : shards) {
+                    SafeFileStore.write(shard.fileName, PersistenceExecutor.serialize(new ArrayList<>(shard.books.values())), true);
+                    shard.dirty = false;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not save the rehashed catalog, keeping the old files: " + e.getMessage());
+                for (Shard shard : shards) {
+                    shard.dirty = true;
+                }
+                return size();
+            }
+            for (int index : strayIndexes) {
+                deleteFile(shardFileName(index));
+            }
+            if (migrated) {
+                new File(LEGACY_FILE).renameTo(new File(LEGACY_FILE + ".migrated"));
+                deleteFile(LEGACY_FILE);
+            }
+        }
+        return size();
+    }
+
+    // Like load, but strictly read-only, for tools such as ColumnarExport that read the files of
+    // a running library: nothing is marked dirty, saved, renamed or deleted. A book found in two
+    // files (the library is partway through a shard count change) is taken from its own shard's.
+    public int loadSnapshot() {
+        List<String> fileNames = new ArrayList<>();
+        TreeSet<Integer> fileIndexes = new TreeSet<>();
+        File[] files = new File(".").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SHARD_FILE.matcher(file.getName());
+                if (matcher.matches()) {
+                    fileIndexes.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        for (int index : fileIndexes) {
+            fileNames.add(shardFileName(index));
+        }
+        if (fileNames.isEmpty() && (new File(LEGACY_FILE).exists() || new File(LEGACY_FILE + ".prev").exists())) {
+            fileNames.add(LEGACY_FILE);
+        }
+        fileNames.parallelStream().forEach(this::loadFileSnapshot);
+        return size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadFileSnapshot(String fileName) {
+        try {
+            List<Book> books = SafeFileStore.readSnapshot(fileName, data -> (List<Book>) PersistenceExecutor.deserialize(data));
+            if (books == null) {
+                return;
+            }
+            for (Book book : books) {
+                String key = normalizeIsbn(book.getIsbn());
+                Shard shard = shardFor(key);
+                shard.lock.writeLock().lock();
+                try {
+                    if (shard.fileName.equals(fileName)) {
+                        shard.books.put(key, book);
+                    } else {
+                        shard.books.putIfAbsent(key, book);
+                    }
+                } finally {
+                    shard.lock.writeLock().unlock();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    // Returns false if any book in the file belongs to a different shard than home
+    @SuppressWarnings("unchecked")
+    private boolean loadFile(String fileName, Shard home) {
+        try {
+            List<Book> books = SafeFileStore.read(fileName, data -> (List<Book>) PersistenceExecutor.deserialize(data));
+            if (books == null) {
+                return true;
+            }
+            boolean allHome = home != null;
+            for (Book book : books) {
+                add(book);
+                allHome &= shardFor(normalizeIsbn(book.getIsbn())) == home;
+            }
+            return allHome;
+        } catch (IOException e) {
+            System.out.println("Could not recover " + fileName + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    private static void deleteFile(String fileName) {
+        new File(fileName).delete();
+        new File(fileName + ".prev").delete();
+    }
+
+    // Queues a save for every shard changed since its last save
+    public CompletableFuture<Void> saveDirty(PersistenceExecutor persistence) {
+        List<CompletableFuture<Void>> saves = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                if (!shard.dirty) {
+                    continue;
+                }
+                shard.dirty = false;
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+            CompletableFuture<Void> save = persistence.submit(shard.fileName, () -> {
+                shard.lock.readLock().lock();
+                try {
+                    return PersistenceExecutor.serialize(new ArrayList<>(shard.books.values()));
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            });
+            save.exceptionally(e -> {
+                markShardDirty(shard);
+                return null;
+            });
+            saves.add(save);
+        }
+        return CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void markShardDirty(Shard shard) {
+        shard.lock.writeLock().lock();
+        try {
+            shard.dirty = true;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+}
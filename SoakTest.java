@@ -0,0 +1,246 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+// Long-running soak test: seeds a synthetic catalog and replays a seeded operation mix
+// against Library and DatabaseManager, reporting throughput, latency, heap, GC and file
+// growth every interval so regressions and leaks show up as drift over time.
+//
+//   java SoakTest [--books N] [--users N] [--seed S] [--minutes M | --seconds S] [--report-seconds R]
+//
+// It reads and writes the catalog files in the working directory, so run it from an
+// empty scratch directory.
+public class SoakTest {
+    private final WorkloadGenerator generator;
+    private final Library library;
+    private final List<User> users = new ArrayList<>();
+    private final PrintStream report;
+
+    private final LatencyHistogram window = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private long firstWindowP99;
+    private long operations;
+    private long failures;
+
+    public SoakTest(WorkloadGenerator generator, Library library, PrintStream report) {
+        this.generator = generator;
+        this.library = library;
+        this.report = report;
+    }
+
+    public static void main(String[] args) {
+        int books = 100_000;
+        int userCount = 10_000;
+        long seed = 42;
+        long durationSeconds = 3600;
+        int reportSeconds = 60;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--books" -> books = Integer.parseInt(args[i + 1]);
+                case "--users" -> userCount = Integer.parseInt(args[i + 1]);
+                case "--seed" -> seed = Long.parseLong(args[i + 1]);
+                case "--minutes" -> durationSeconds = Long.parseLong(args[i + 1]) * 60;
+                case "--seconds" -> durationSeconds = Long.parseLong(args[i + 1]);
+                case "--report-seconds" -> reportSeconds = Integer.parseInt(args[i + 1]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        if (new File("users.dat").exists() || dataFileBytes() > 0) {
+            System.out.println("Error: catalog files found in the working directory. Run the soak test from an empty directory.");
+            return;
+        }
+
+        PrintStream console = System.out;
+        // Library and DatabaseManager report every action on the console; keep only our own output
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            DatabaseManager.initializeDatabase();
+            Library library = new Library();
+            library.setAdmissionControl(AdmissionControl.unlimited());
+            SoakTest test = new SoakTest(new WorkloadGenerator(seed, books, userCount), library, console);
+            test.seed();
+            test.run(durationSeconds * 1000L, reportSeconds * 1000L);
+        } finally {
+            System.setOut(console);
+            DatabaseManager.closeConnection();
+        }
+    }
+
+    private void seed() {
+        long start = System.nanoTime();
+        users.addAll(seedLibrary(generator, library));
+        report.printf("Seeded %d books and %d users in %.1f s%n", generator.getBookCount(),
+            generator.getUserCount(), (System.nanoTime() - start) / 1e9);
+    }
+
+    // Registers the generator's users and adds its catalog, saving once at the end
+    static List<User> seedLibrary(WorkloadGenerator generator, Library library) {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < generator.getUserCount(); i++) {
+            String username = WorkloadGenerator.username(i);
+            library.createAccount(username, "soak", "Soak User " + i);
+            User user = DatabaseManager.findUser(username);
+            library.registerUser(user);
+            users.add(user);
+        }
+
+        library.setSavesDeferred(true);
+        try {
+            for (int i = 0; i < generator.getBookCount(); i++) {
+                Book book = generator.book(i);
+                if (generator.isTemporaryLoan(i)) {
+                    library.acceptTemporaryLoan(users.get(i % users.size()), book.getIsbn(), book.getTitle(),
+                        book.getAuthor(), book.getRentalPricePerDay(), generator.loanMonths(i));
+                } else {
+                    library.addBook(book);
+                }
+            }
+        } catch (RateLimitExceededException e) {
+            throw new IllegalStateException("Seeding needs admission control disabled", e);
+        } finally {
+            library.setSavesDeferred(false);
+        }
+        library.save().join();
+        library.flush();
+        return users;
+    }
+
+    private void run(long durationMillis, long reportMillis) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long start = System.currentTimeMillis();
+        long nextReport = start + reportMillis;
+        long windowOperations = 0;
+        long lastGcCount = gcCount();
+        long lastGcMillis = gcMillis();
+        long startFileBytes = dataFileBytes();
+
+        report.println("elapsed   ops/s   p50(ms)  p99(ms)  max(ms)  p99 drift  heap(MB)  gc  gc(ms)  files(MB)  failed");
+        while (System.currentTimeMillis() - start < durationMillis) {
+            WorkloadGenerator.Operation op = generator.nextOperation();
+            long opStart = System.nanoTime();
+            boolean ok = execute(op);
+            long nanos = System.nanoTime() - opStart;
+            window.record(nanos);
+            total.record(nanos);
+            operations++;
+            windowOperations++;
+            if (!ok) {
+                failures++;
+            }
+
+            // Loans expire on the same path as in the CLI, just less often
+            if (operations % 10_000 == 0) {
+                library.processExpiredLoans();
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                long p99 = window.percentile(0.99);
+                if (firstWindowP99 == 0) {
+                    firstWindowP99 = Math.max(1, p99);
+                }
+                long gcCount = gcCount();
+                long gcMillis = gcMillis();
+                report.printf("%6ds  %7.0f  %7.3f  %7.3f  %7.3f  %8.2fx  %8d  %3d  %6d  %9.1f  %6d%n",
+                    (now - start) / 1000,
+                    windowOperations * 1000.0 / (now - nextReport + reportMillis),
+                    window.percentile(0.50) / 1e6, p99 / 1e6, window.getMax() / 1e6,
+                    (double) p99 / firstWindowP99,
+                    memory.getHeapMemoryUsage().getUsed() / (1024 * 1024),
+                    gcCount - lastGcCount, gcMillis - lastGcMillis,
+                    dataFileBytes() / (1024.0 * 1024.0), failures);
+                window.reset();
+                windowOperations = 0;
+                lastGcCount = gcCount;
+                lastGcMillis = gcMillis;
+                nextReport = now + reportMillis;
+            }
+        }
+
+        library.flush();
+        long elapsed = System.currentTimeMillis() - start;
+        report.println("\n===== Soak Summary =====");
+        report.printf("Operations: %d (%d failed) in %.1f s, %.0f ops/s%n", operations, failures,
+            elapsed / 1000.0, operations * 1000.0 / Math.max(1, elapsed));
+        report.printf("Latency: p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+            total.percentile(0.50) / 1e6, total.percentile(0.99) / 1e6,
+            total.percentile(0.999) / 1e6, total.getMax() / 1e6);
+        report.printf("Data files: %.1f MB -> %.1f MB%n", startFileBytes / (1024.0 * 1024.0),
+            dataFileBytes() / (1024.0 * 1024.0));
+        report.println(library.getLedger().report());
+        report.println(library.getEvents().metricsReport());
+        report.println("========================");
+    }
+
+    // Expected failures (book already rented, nothing to return) count as failed operations
+    private boolean execute(WorkloadGenerator.Operation op) {
+        User user = users.get(op.userIndex);
+        try {
+            switch (op.type) {
+                case SEARCH -> library.searchBookByTitle(op.text, user.getId());
+                case FUZZY_SEARCH -> library.suggestBooks(op.text, 5);
+                case FILTER -> library.findBooks(new BookQuery().author(op.author).priceBetween(0, op.price));
+                case RENT -> library.rentBook(op.isbn, user.getId(), op.days);
+                case RETURN -> {
+                    if (user.getBooks().isEmpty()) {
+                        return false;
+                    }
+                    library.returnBook(user.getBooks().get(0).getIsbn(), user.getId());
+                }
+                case ADOPT -> library.adoptBook(op.isbn, user.getId());
+                case DONATE -> {
+                    return library.acceptPermanentDonation(user, op.isbn, op.text, op.author, op.price);
+                }
+                case LEND -> {
+                    return library.acceptTemporaryLoan(user, op.isbn, op.text, op.author, op.price, op.days);
+                }
+                case LOGIN -> {
+                    return DatabaseManager.loginUser(user.getUsername(), "soak") != null;
+                }
+            }
+            return true;
+        } catch (BookNotFoundException | UserNotFoundException | BookNotAvailableException | BookNotBorrowedException
+                | RateLimitExceededException e) {
+            return false;
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    static long dataFileBytes() {
+        long bytes = 0;
+        File[] files = new File(".").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("books") || name.startsWith("users.dat") || name.startsWith("catalog-changes")) {
+                    bytes += file.length();
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Warm-start image of the catalog and user store for fast launches (-Dlibrary.fastStart=true).
+//
+// Written on a clean shutdown, once every shard and the user file are on disk. It is a
+// compact binary copy of both that loads with one bulk read and no reflection: a table of
+// the distinct titles and authors (UTF-8 plus hash, so they go straight into the StringPool),
+// then fixed-layout book and user records. The image records the size and modification time
+// of every file it was built from and is ignored as soon as any of them changes, so the
+// shard files stay the source of truth.
+//
+//   magic, version, fingerprint
+//   strings: count, then (hash, length, UTF-8 bytes)
+//   books:   count, then (isbn, title, author, price, flags [, donation] [, loan])
+//            dates are epoch days, the loan start adds its nano of day
+//   users:   count, then (id, username, password, name)
+public class StartupImage {
+    public static final String FILE = "startup.img";
+    private static final int MAGIC = 0x4C494D47; // "LIMG"
+    private static final int VERSION = 1;
+    private static final byte BORROWED = 1;
+    private static final byte DONATED = 2;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+
+    private static final boolean ENABLED = Boolean.getBoolean("library.fastStart");
+    private static StartupImage loaded;
+    private static boolean attempted;
+
+    private final List<Book> books;
+    private final Map<String, DatabaseManager.UserData> users;
+    private final long fingerprint;
+    private final long readMillis;
+
+    private StartupImage(List<Book> books, Map<String, DatabaseManager.UserData> users, long fingerprint, long readMillis) {
+        this.books = books;
+        this.users = users;
+        this.fingerprint = fingerprint;
+        this.readMillis = readMillis;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    // The image, read once and shared by Library and DatabaseManager; null when fast start is
+    // off or the image is missing, stale or damaged
+    public static synchronized StartupImage get() {
+        if (!attempted) {
+            attempted = true;
+            loaded = ENABLED ? read() : null;
+        }
+        return loaded;
+    }
+
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    public Map<String, DatabaseManager.UserData> getUsers() {
+        return users;
+    }
+
+    public long getReadMillis() {
+        return readMillis;
+    }
+
+    private static StartupImage read() {
+        if (!new File(FILE).exists()) {
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            byte[] data = SafeFileStore.read(FILE);
+            long readMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (data == null) {
+                return null;
+            }
+            ByteBuffer in = ByteBuffer.wrap(data);
+            long fingerprint = fingerprint();
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != fingerprint) {
+                System.out.println("Startup image is out of date; loading the catalog files.");
+                return null;
+            }
+
+            StringPool pool = StringPool.getInstance();
+            int[] handles = new int[in.getInt()];
+            for (int i = 0; i < handles.length; i++) {
+                int hash = in.getInt();
+                int length = in.getInt();
+                handles[i] = pool.intern(data, in.position(), length, hash);
+                in.position(in.position() + length);
+            }
+
+            int bookCount = in.getInt();
+            List<Book> books = new ArrayList<>(bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                String isbn = readString(in, data);
+                Book book = Book.fromPool(isbn, handles[in.getInt()], handles[in.getInt()], in.getDouble());
+                byte flags = in.get();
+                if ((flags & DONATED) != 0) {
+                    int donorUserId = in.getInt();
+                    String donationType = readString(in, data);
+                    book.setDonation(donorUserId, donationType, toDate(in.getInt()));
+                }
+                if ((flags & BORROWED) != 0) {
+                    LocalDate borrowedOn = toDate(in.getInt());
+                    long borrowedAtNanoOfDay = in.getLong();
+                    LocalDate dueDate = toDate(in.getInt());
+                    book.restoreLoan(borrowedOn == null ? null
+                        : LocalDateTime.of(borrowedOn, LocalTime.ofNanoOfDay(borrowedAtNanoOfDay)), dueDate);
+                }
+                books.add(book);
+            }
+
+            int userCount = in.getInt();
+            Map<String, DatabaseManager.UserData> users = new HashMap<>(userCount * 2);
+            for (int i = 0; i < userCount; i++) {
+                int id = in.getInt();
+                String username = readString(in, data);
+                DatabaseManager.UserData user = new DatabaseManager.UserData(id, username, readString(in, data), readString(in, data));
+                users.put(username.toLowerCase(), user);
+            }
+            return new StartupImage(books, users, fingerprint, readMillis);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring startup image: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // True when the image read at startup still matches the files, so there is nothing to rewrite
+    public static synchronized boolean isCurrent() {
+        return loaded != null && loaded.fingerprint == fingerprint();
+    }
+
+    // Call after the shards and users have been saved and flushed
+    public static void write(List<Book> books, Map<String, DatabaseManager.UserData> users) throws IOException {
+        StringPool pool = StringPool.getInstance();
+        int[] imageIndex = new int[pool.size()];
+        Arrays.fill(imageIndex, -1);
+        List<Integer> strings = new ArrayList<>();
+        for (Book book : books) {
+            for (int handle : new int[] { book.getTitleHandle(), book.getAuthorHandle() }) {
+                if (imageIndex[handle] < 0) {
+                    imageIndex[handle] = strings.size();
+                    strings.add(handle);
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(books.size() * 64 + 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fingerprint());
+
+        out.writeInt(strings.size());
+        for (int handle : strings) {
+            byte[] utf8 = pool.getUtf8(handle);
+            out.writeInt(pool.getHash(handle));
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+
+        out.writeInt(books.size());
+        for (Book book : books) {
+            writeString(out, book.getIsbn());
+            out.writeInt(imageIndex[book.getTitleHandle()]);
+            out.writeInt(imageIndex[book.getAuthorHandle()]);
+            out.writeDouble(book.getRentalPricePerDay());
+            boolean donated = book.getDonorUserId() != null;
+            out.writeByte((donated ? DONATED : 0) | (book.isAvailable() ? 0 : BORROWED));
+            if (donated) {
+                out.writeInt(book.getDonorUserId());
+                writeString(out, book.getDonationType());
+                out.writeInt(book.getLendUntilDate() == null ? NO_DATE : (int) book.getLendUntilDate().toEpochDay());
+            }
+            if (!book.isAvailable()) {
+                LocalDateTime borrowedAt = book.getBorrowedAt();
+                out.writeInt(borrowedAt == null ? NO_DATE : (int) borrowedAt.toLocalDate().toEpochDay());
+                out.writeLong(borrowedAt == null ? 0 : borrowedAt.toLocalTime().toNanoOfDay());
+                out.writeInt(book.getDueDate() == null ? NO_DATE : (int) book.getDueDate().toEpochDay());
+            }
+        }
+
+        out.writeInt(users.size());
+        for (DatabaseManager.UserData user : users.values()) {
+            out.writeInt(user.id);
+            writeString(out, user.username);
+            writeString(out, user.password);
+            writeString(out, user.name);
+        }
+        out.flush();
+        SafeFileStore.write(FILE, bytes.toByteArray(), true);
+    }
+
+    // Identifies the exact shard and user files the image was built from. The shard count is
+    // part of it: after a change the normal load has to rehash and clean up the old files.
+    private static long fingerprint() {
+        File[] files = new File(".").listFiles((dir, name) -> name.matches("books-\\d+\\.dat") || name.equals("users.dat"));
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+        long fingerprint = 17 + Integer.getInteger("library.shards", 8);
+        for (File file : files) {
+            fingerprint = fingerprint * 31 + file.getName().hashCode();
+            fingerprint = fingerprint * 31 + file.length();
+            fingerprint = fingerprint * 31 + file.lastModified();
+        }
+        return fingerprint;
+    }
+
+    // Length-prefixed UTF-8; length -1 is null
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in, byte[] data) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(data, in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static LocalDate toDate(int epochDay) {
+        return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+}
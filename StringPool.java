@@ -0,0 +1,128 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Dictionary of book titles and authors, stored as UTF-8 in off-heap chunks.
+//
+// intern() returns a small int handle, the same handle for equal strings, so a catalog
+// that repeats one author a thousand times stores the name once, and Book keeps two ints
+// instead of two String objects. get() decodes on demand. The bytes live in direct
+// buffers the garbage collector never scans or copies; the only on-heap state is a few
+// int/long arrays. Entries are never removed: the pool only grows with distinct strings.
+public class StringPool {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final StringPool INSTANCE = new StringPool();
+
+    // Entry = 4-byte length + UTF-8 bytes; an entry never spans two chunks
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private volatile long[] positions = new long[1024];   // chunk index << 32 | offset
+    private int[] hashes = new int[1024];
+    private int[] slots = new int[2048];                   // open addressing, handle + 1, 0 = empty
+    private int size;
+    private ByteBuffer current;
+
+    public static StringPool getInstance() {
+        return INSTANCE;
+    }
+
+    public int intern(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length, value.hashCode());
+    }
+
+    // Interns UTF-8 bytes whose String.hashCode() is already known, without building the String
+    public synchronized int intern(byte[] utf8, int offset, int length, int hash) {
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                int handle = append(hash, utf8, offset, length);
+                slots[slot] = handle + 1;
+                if (size * 2 > slots.length) {
+                    rehash();
+                }
+                return handle;
+            }
+            if (hashes[entry - 1] == hash && matches(entry - 1, utf8, offset, length)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    // Safe without the lock: an entry's bytes and position are written before its handle is handed out
+    public String get(int handle) {
+        return new String(getUtf8(handle), StandardCharsets.UTF_8);
+    }
+
+    // Raw entry, for writing the startup image
+    public byte[] getUtf8(int handle) {
+        long position = positions[handle];
+        ByteBuffer chunk = chunks[(int) (position >>> 32)];
+        int offset = (int) position;
+        byte[] bytes = new byte[chunk.getInt(offset)];
+        chunk.get(offset + 4, bytes);
+        return bytes;
+    }
+
+    public synchronized int getHash(int handle) {
+        return hashes[handle];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private int append(int hash, byte[] bytes, int from, int length) {
+        int needed = 4 + length;
+        if (current == null || current.remaining() < needed) {
+            current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, needed));
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[grown.length - 1] = current;
+            chunks = grown;
+        }
+        int offset = current.position();
+        current.putInt(length).put(bytes, from, length);
+
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        hashes[size] = hash;
+        positions[size] = (long) (chunks.length - 1) << 32 | offset;
+        return size++;
+    }
+
+    private boolean matches(int handle, byte[] bytes, int from, int length) {
+        long position = positions[handle];
+        ByteBuffer chunk = chunks[(int) (position >>> 32)];
+        int offset = (int) position;
+        if (chunk.getInt(offset) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chunk.get(offset + 4 + i) != bytes[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        int[] grown = new int[slots.length * 2];
+        int mask = grown.length - 1;
+        for (int handle = 0; handle < size; handle++) {
+            int slot = mix(hashes[handle]) & mask;
+            while (grown[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            grown[slot] = handle + 1;
+        }
+        slots = grown;
+    }
+
+    // String.hashCode clusters for similar strings; spread it before masking
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
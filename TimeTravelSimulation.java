@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Fast-forwards the library through simulated days on a frozen LibraryClock: each day
+// users rent popular books, return earlier rentals (some late, paying late fees) and
+// temporary loans expire, then the clock jumps a day. A year of activity takes seconds,
+// which makes the due date, late fee and expiry paths easy to load-test.
+//
+//   java TimeTravelSimulation [--books N] [--users N] [--days D] [--rentals-per-day R] [--seed S]
+//
+// Like the soak test it writes the catalog files in the working directory, so run it from
+// an empty scratch directory.
+public class TimeTravelSimulation {
+    private static final LocalDateTime START = LocalDateTime.of(2025, 1, 1, 9, 0);
+
+    private final WorkloadGenerator generator;
+    private final Library library;
+    private final List<User> users;
+    private final SplittableRandom random;
+    // Rentals waiting to be returned, bucketed by the simulated day they come back
+    private final List<List<Rental>> returnsByDay = new ArrayList<>();
+
+    private long rentals;
+    private long returns;
+    private long lateReturns;
+    private long failures;
+    private long expired;
+    private double lateFees;
+
+    private static class Rental {
+        final String isbn;
+        final int userId;
+
+        Rental(String isbn, int userId) {
+            this.isbn = isbn;
+            this.userId = userId;
+        }
+    }
+
+    public TimeTravelSimulation(WorkloadGenerator generator, Library library, List<User> users, long seed) {
+        this.generator = generator;
+        this.library = library;
+        this.users = users;
+        this.random = new SplittableRandom(seed);
+    }
+
+    public static void main(String[] args) {
+        int books = 100_000;
+        int userCount = 10_000;
+        int days = 365;
+        int rentalsPerDay = 1_000;
+        long seed = 42;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--books" -> books = Integer.parseInt(args[i + 1]);
+                case "--users" -> userCount = Integer.parseInt(args[i + 1]);
+                case "--days" -> days = Integer.parseInt(args[i + 1]);
+                case "--rentals-per-day" -> rentalsPerDay = Integer.parseInt(args[i + 1]);
+                case "--seed" -> seed = Long.parseLong(args[i + 1]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        if (new File("users.dat").exists() || SoakTest.dataFileBytes() > 0) {
+            System.out.println("Error: catalog files found in the working directory. Run the simulation from an empty directory.");
+            return;
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        LibraryClock.useSimulation(START);
+        try {
+            DatabaseManager.initializeDatabase();
+            Library library = new Library();
+            library.setAdmissionControl(AdmissionControl.unlimited());
+            WorkloadGenerator generator = new WorkloadGenerator(seed, books, userCount);
+
+            long seedStart = System.nanoTime();
+            List<User> users = SoakTest.seedLibrary(generator, library);
+            console.printf("Seeded %d books and %d users in %.1f s%n", books, userCount,
+                (System.nanoTime() - seedStart) / 1e9);
+
+            TimeTravelSimulation simulation = new TimeTravelSimulation(generator, library, users, seed);
+            long start = System.nanoTime();
+            simulation.run(days, rentalsPerDay);
+            simulation.printReport(console, days, System.nanoTime() - start);
+        } finally {
+            System.setOut(console);
+            DatabaseManager.closeConnection();
+            LibraryClock.useSystemClock();
+        }
+    }
+
+    private void run(int days, int rentalsPerDay) {
+        for (int day = 0; day < days; day++) {
+            library.setSavesDeferred(true);
+            try {
+                returnDueRentals(day);
+                rentBooks(day, rentalsPerDay);
+            } finally {
+                library.setSavesDeferred(false);
+            }
+            expired += library.processExpiredLoans();
+            library.save();
+            LibraryClock.advance(Duration.ofDays(1));
+        }
+        library.flush();
+    }
+
+    private void rentBooks(int day, int count) {
+        for (int i = 0; i < count; i++) {
+            String isbn = generator.nextPopularIsbn();
+            User user = users.get(generator.nextUserIndex());
+            int rentalDays = 1 + random.nextInt(30);
+            try {
+                library.rentBook(isbn, user.getId(), rentalDays);
+            } catch (BookNotFoundException | UserNotFoundException | BookNotAvailableException | RateLimitExceededException e) {
+                failures++;
+                continue;
+            }
+            rentals++;
+            // One return in five comes back up to two weeks late
+            int keptDays = random.nextInt(5) == 0 ? rentalDays + 1 + random.nextInt(14) : 1 + random.nextInt(rentalDays);
+            bucket(day + keptDays).add(new Rental(isbn, user.getId()));
+        }
+    }
+
+    private void returnDueRentals(int day) {
+        if (day >= returnsByDay.size()) {
+            return;
+        }
+        for (Rental rental : returnsByDay.get(day)) {
+            try {
+                double fee = library.returnBook(rental.isbn, rental.userId);
+                returns++;
+                if (fee > 0) {
+                    lateReturns++;
+                    lateFees += fee;
+                }
+            } catch (BookNotFoundException | UserNotFoundException | BookNotBorrowedException | RateLimitExceededException e) {
+                // The book was a temporary loan that expired while it was out
+                failures++;
+            }
+        }
+        returnsByDay.set(day, null);
+    }
+
+    private List<Rental> bucket(int day) {
+        while (returnsByDay.size() <= day) {
+            returnsByDay.add(new ArrayList<>());
+        }
+        return returnsByDay.get(day);
+    }
+
+    private void printReport(PrintStream report, int days, long nanos) {
+        double seconds = nanos / 1e9;
+        long operations = rentals + returns + failures;
+        report.println("\n===== Time Travel Simulation =====");
+        report.printf("Simulated %d days (%s to %s) in %.1f s, %.1f days/s%n", days,
+            START.toLocalDate(), LibraryClock.today(), seconds, days / Math.max(seconds, 1e-9));
+        report.printf("Operations: %d (%d failed), %.0f ops/s%n", operations, failures, operations / Math.max(seconds, 1e-9));
+        report.printf("Rentals: %d, returns: %d, late returns: %d%n", rentals, returns, lateReturns);
+        report.printf("Late fees collected: $%.2f%n", lateFees);
+        report.printf("Temporary loans expired: %d%n", expired);
+        report.println("==================================");
+    }
+}
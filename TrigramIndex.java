@@ -0,0 +1,371 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Trigram index over book titles and authors.
+// Used to narrow title searches to candidate books, and to suggest close matches
+// for misspelled queries ("Askaban" finds "Azkaban") without scanning the catalog.
+public class TrigramIndex {
+    private static final int MAX_CANDIDATES = 500;
+    // Trigrams shared by more than this fraction of books ("the", "and") say little about a match
+    private static final double COMMON_TRIGRAM_FRACTION = 0.2;
+
+    private final TrigramTable postings = new TrigramTable();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final List<Book> docs = new ArrayList<>();
+    private final List<String[]> docWords = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int liveDocs;
+
+    // Growable, sorted list of doc ids
+    private static class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    // Open-addressing map from packed trigram to postings, avoiding a boxed Long per lookup
+    private static class TrigramTable {
+        long[] keys = new long[1024];
+        Postings[] values = new Postings[1024];
+        int size;
+
+        Postings get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        Postings getOrCreate(long key) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            for (; values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            Postings created = new Postings();
+            keys[slot] = key;
+            values[slot] = created;
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+            return created;
+        }
+
+        void clear() {
+            keys = new long[1024];
+            values = new Postings[1024];
+            size = 0;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Postings[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Postings[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static class Candidate {
+        final int id;
+        int hits;
+        int distance;
+
+        Candidate(int id) {
+            this.id = id;
+        }
+    }
+
+    public void add(Book book) {
+        String key = ShardedCatalog.normalizeIsbn(book.getIsbn());
+        String[] words = words(book.getTitle() + " " + book.getAuthor());
+        lock.writeLock().lock();
+        try {
+            removeLocked(key);
+            int id = docs.size();
+            docs.add(book);
+            docWords.add(words);
+            docIds.put(key, id);
+            liveDocs++;
+            for (String word : words) {
+                for (long trigram : trigrams(word, true)) {
+                    Postings list = postings.getOrCreate(trigram);
+                    // A word can repeat a trigram; ids are appended in order so only the last needs checking
+                    if (list.size == 0 || list.ids[list.size - 1] != id) {
+                        list.add(id);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Book book) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(ShardedCatalog.normalizeIsbn(book.getIsbn()));
+            if (docs.size() > 1024 && liveDocs < docs.size() / 2) {
+                rebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(String key) {
+        Integer id = docIds.remove(key);
+        if (id != null) {
+            // Leave the id in the posting lists; lookups skip removed docs
+            docs.set(id, null);
+            docWords.set(id, null);
+            liveDocs--;
+        }
+    }
+
+    // Drops removed docs from the posting lists once they make up half the index
+    private void rebuild() {
+        List<Book> live = new ArrayList<>(liveDocs);
+        for (Book book : docs) {
+            if (book != null) {
+                live.add(book);
+            }
+        }
+        postings.clear();
+        docIds.clear();
+        docs.clear();
+        docWords.clear();
+        liveDocs = 0;
+        for (Book book : live) {
+            add(book); // the write lock is reentrant
+        }
+    }
+
+    // Books whose title contains the query, or null when the query is too short to use the index
+    public List<Book> titleContains(String query) {
+        String lowerQuery = query.toLowerCase();
+        List<Long> required = new ArrayList<>();
+        for (String word : words(query)) {
+            for (long trigram : trigrams(word, false)) {
+                required.add(trigram);
+            }
+        }
+        if (required.isEmpty()) {
+            return null;
+        }
+
+        lock.readLock().lock();
+        try {
+            // Intersect starting from the shortest posting list
+            List<Postings> lists = new ArrayList<>();
+            for (long trigram : required) {
+                Postings list = postings.get(trigram);
+                if (list == null) {
+                    return new ArrayList<>();
+                }
+                lists.add(list);
+            }
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+            int[] result = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+            int resultSize = result.length;
+            for (int i = 1; i < lists.size() && resultSize > 0; i++) {
+                resultSize = intersect(result, resultSize, lists.get(i));
+            }
+
+            List<Book> found = new ArrayList<>();
+            for (int i = 0; i < resultSize; i++) {
+                Book book = docs.get(result[i]);
+                if (book != null && book.getTitle().toLowerCase().contains(lowerQuery)) {
+                    found.add(book);
+                }
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Keeps the ids in result[0..size) that also appear in list; returns the new size
+    private static int intersect(int[] result, int size, Postings list) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < list.size && list.ids[j] < result[i]) {
+                j++;
+            }
+            if (j < list.size && list.ids[j] == result[i]) {
+                result[kept++] = result[i];
+            }
+        }
+        return kept;
+    }
+
+    // Books whose title or author words are within a small edit distance of the query words,
+    // best matches first
+    public List<Book> fuzzySearch(String query, int limit) {
+        String[] queryWords = words(query);
+        if (queryWords.length == 0) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            Map<Integer, Candidate> candidates = new HashMap<>();
+            int queryTrigrams = 0;
+            int commonLimit = Math.max(MAX_CANDIDATES, (int) (liveDocs * COMMON_TRIGRAM_FRACTION));
+            for (String word : queryWords) {
+                for (long trigram : trigrams(word, true)) {
+                    queryTrigrams++;
+                    Postings list = postings.get(trigram);
+                    if (list == null || list.size > commonLimit) {
+                        continue;
+                    }
+                    for (int i = 0; i < list.size; i++) {
+                        candidates.computeIfAbsent(list.ids[i], Candidate::new).hits++;
+                    }
+                }
+            }
+
+            // Each edit can break up to three trigrams, so a real match keeps a good share of them
+            int minHits = Math.max(1, queryTrigrams / 3);
+            List<Candidate> ranked = new ArrayList<>();
+            for (Candidate candidate : candidates.values()) {
+                if (candidate.hits >= minHits && docs.get(candidate.id) != null) {
+                    ranked.add(candidate);
+                }
+            }
+            ranked.sort((a, b) -> Integer.compare(b.hits, a.hits));
+            if (ranked.size() > MAX_CANDIDATES) {
+                ranked = new ArrayList<>(ranked.subList(0, MAX_CANDIDATES));
+            }
+
+            List<Candidate> matches = new ArrayList<>();
+            for (Candidate candidate : ranked) {
+                candidate.distance = distance(queryWords, docWords.get(candidate.id));
+                if (candidate.distance >= 0) {
+                    matches.add(candidate);
+                }
+            }
+            matches.sort((a, b) -> a.distance != b.distance
+                ? Integer.compare(a.distance, b.distance)
+                : Integer.compare(b.hits, a.hits));
+
+            List<Book> found = new ArrayList<>();
+            for (int i = 0; i < matches.size() && found.size() < limit; i++) {
+                found.add(docs.get(matches.get(i).id));
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Sum over query words of the closest doc word, or -1 if some query word has no close match
+    private static int distance(String[] queryWords, String[] docWords) {
+        int total = 0;
+        for (String queryWord : queryWords) {
+            int maxEdits = queryWord.length() <= 4 ? 1 : 2;
+            int best = -1;
+            for (String docWord : docWords) {
+                int d = boundedLevenshtein(queryWord, docWord, maxEdits);
+                if (d >= 0 && (best < 0 || d < best)) {
+                    best = d;
+                }
+            }
+            if (best < 0) {
+                return -1;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    // Edit distance between a and b, or -1 once it is known to exceed max
+    private static int boundedLevenshtein(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return -1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return -1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()] <= max ? previous[b.length()] : -1;
+    }
+
+    // Lowercased runs of letters and digits
+    private static String[] words(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+
+    // Trigrams of one word, packed as three 16-bit chars. Padded trigrams also mark
+    // the start and end of the word, which helps rank whole-word matches.
+    private static long[] trigrams(String word, boolean padded) {
+        String text = padded ? " " + word + " " : word;
+        if (text.length() < 3) {
+            return new long[0];
+        }
+        long[] result = new long[text.length() - 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        return result;
+    }
+}
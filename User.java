@@ -1,5 +1,5 @@
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 // Class User to manage users and user database
 public class User {
     private final int id;
@@ -11,7 +11,8 @@ public class User {
         this.id = id;
         this.username = username;
         this.name = name;
-        this.borrowedBooks = new ArrayList<>();
+        // Rentals of books in different catalog shards can change it at the same time
+        this.borrowedBooks = new CopyOnWriteArrayList<>();
     }
 
     public void addBook(Book book) {
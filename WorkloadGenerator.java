@@ -0,0 +1,193 @@
+import java.util.SplittableRandom;
+
+// Deterministic synthetic catalog, users and operation mix for load and soak tests.
+// The same seed always produces the same books, users and sequence of operations.
+public class WorkloadGenerator {
+    public enum OperationType { SEARCH, FUZZY_SEARCH, FILTER, RENT, RETURN, ADOPT, DONATE, LEND, LOGIN }
+
+    // Percentages of each operation, in OperationType order
+    private static final int[] MIX = { 40, 5, 5, 20, 17, 2, 4, 3, 4 };
+
+    private static final String[] TITLE_WORDS = {
+        "Shadow", "River", "Winter", "Empire", "Garden", "Night", "Stone", "Secret", "Crown", "Storm",
+        "Silent", "Last", "Hidden", "Golden", "Broken", "Wild", "Iron", "Glass", "Forgotten", "Distant",
+        "Kingdom", "Journey", "Harbor", "Mountain", "Letters", "Daughter", "Island", "Machine", "Promise", "Fire"
+    };
+    private static final String[] FIRST_NAMES = {
+        "Anna", "Omar", "Li", "Maria", "James", "Sara", "Yusuf", "Elena", "Kofi", "Hana", "Diego", "Nadia"
+    };
+    private static final String[] LAST_NAMES = {
+        "Haddad", "Okafor", "Chen", "Garcia", "Smith", "Novak", "Khan", "Rossi", "Mensah", "Sato", "Silva", "Berg"
+    };
+
+    private final long seed;
+    private final SplittableRandom random;
+    private final int bookCount;
+    private final int userCount;
+    private final int authorCount;
+    private final ZipfSampler bookPopularity;
+    private final ZipfSampler authorPopularity;
+    private int nextDonatedIsbn;
+
+    public static class Operation {
+        public OperationType type;
+        public int userIndex;
+        public String isbn;
+        public String text;     // search text, or title for donations
+        public String author;
+        public double price;
+        public int days;        // rental days, or loan months for LEND
+    }
+
+    // Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^skew
+    private static class ZipfSampler {
+        private final double[] cumulative;
+
+        ZipfSampler(int n, double skew) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += 1.0 / Math.pow(i + 1, skew);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        int sample(SplittableRandom random) {
+            double u = random.nextDouble();
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < u) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    public WorkloadGenerator(long seed, int bookCount, int userCount) {
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+        this.bookCount = bookCount;
+        this.userCount = userCount;
+        this.authorCount = Math.max(1, bookCount / 20);
+        this.bookPopularity = new ZipfSampler(bookCount, 1.0);
+        this.authorPopularity = new ZipfSampler(authorCount, 0.8);
+        this.nextDonatedIsbn = bookCount + 1;
+    }
+
+    public int getBookCount() {
+        return bookCount;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public static String username(int userIndex) {
+        return "soak_user_" + userIndex;
+    }
+
+    public static String isbn(int bookIndex) {
+        return String.valueOf(bookIndex + 1);
+    }
+
+    // Book i of the seeded catalog: a quarter are free, one in ten is a temporary loan
+    // with an expiry staggered over the next 12 months
+    public Book book(int bookIndex) {
+        // Seeded per book so the catalog does not depend on how many operations have run
+        SplittableRandom bookRandom = new SplittableRandom(seed ^ (bookIndex * 0x9E3779B97F4A7C15L));
+        String title = title(bookRandom) + " " + (bookIndex + 1);
+        String author = author(authorPopularity.sample(bookRandom));
+        double price = bookRandom.nextInt(4) == 0 ? 0.0 : priceFor(bookRandom);
+        return new Book(isbn(bookIndex), title, author, price);
+    }
+
+    public boolean isTemporaryLoan(int bookIndex) {
+        return bookIndex % 10 == 7;
+    }
+
+    public int loanMonths(int bookIndex) {
+        return 1 + bookIndex % 12;
+    }
+
+    // ISBN of a book drawn by popularity
+    public String nextPopularIsbn() {
+        return isbn(bookPopularity.sample(random));
+    }
+
+    public int nextUserIndex() {
+        return random.nextInt(userCount);
+    }
+
+    public Operation nextOperation() {
+        Operation op = new Operation();
+        op.type = pickType();
+        op.userIndex = random.nextInt(userCount);
+        switch (op.type) {
+            case SEARCH -> op.text = TITLE_WORDS[random.nextInt(TITLE_WORDS.length)];
+            case FUZZY_SEARCH -> op.text = misspell(TITLE_WORDS[random.nextInt(TITLE_WORDS.length)]);
+            case FILTER -> {
+                op.author = author(authorPopularity.sample(random));
+                op.price = random.nextInt(5);
+            }
+            case RENT, RETURN, ADOPT -> {
+                op.isbn = isbn(bookPopularity.sample(random));
+                op.days = 1 + random.nextInt(30);
+            }
+            case DONATE, LEND -> {
+                op.isbn = String.valueOf(nextDonatedIsbn++);
+                op.text = title(random) + " " + op.isbn;
+                op.author = author(authorPopularity.sample(random));
+                op.price = random.nextInt(4) == 0 ? 0.0 : priceFor(random);
+                op.days = 1 + random.nextInt(12);
+            }
+            case LOGIN -> {
+                // user index is all that is needed
+            }
+        }
+        return op;
+    }
+
+    private OperationType pickType() {
+        int roll = random.nextInt(100);
+        for (int i = 0; i < MIX.length; i++) {
+            roll -= MIX[i];
+            if (roll < 0) {
+                return OperationType.values()[i];
+            }
+        }
+        return OperationType.SEARCH;
+    }
+
+    private static String title(SplittableRandom random) {
+        return "The " + TITLE_WORDS[random.nextInt(TITLE_WORDS.length)] + " of the "
+            + TITLE_WORDS[random.nextInt(TITLE_WORDS.length)];
+    }
+
+    private static String author(int authorIndex) {
+        return FIRST_NAMES[authorIndex % FIRST_NAMES.length] + " "
+            + LAST_NAMES[(authorIndex / FIRST_NAMES.length) % LAST_NAMES.length]
+            + (authorIndex >= FIRST_NAMES.length * LAST_NAMES.length ? " " + authorIndex : "");
+    }
+
+    private static double priceFor(SplittableRandom random) {
+        return 0.5 + random.nextInt(10) * 0.5;
+    }
+
+    // Swaps two neighbouring letters, the most common kind of typo
+    private String misspell(String word) {
+        int i = random.nextInt(word.length() - 1);
+        char[] chars = word.toLowerCase().toCharArray();
+        char swap = chars[i];
+        chars[i] = chars[i + 1];
+        chars[i + 1] = swap;
+        return new String(chars);
+    }
+}